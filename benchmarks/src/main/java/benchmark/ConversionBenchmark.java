@@ -0,0 +1,308 @@
+package benchmark;
+
+import ascii_art.img_to_char.BrightnessCache;
+import ascii_art.img_to_char.BrightnessImgCharMatcher;
+import ascii_art.img_to_char.Dithering;
+import ascii_art.img_to_char.LuminanceKernel;
+import ascii_art.img_to_char.StructureImgCharMatcher;
+import ascii_output.HtmlAsciiOutput;
+import image.Image;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures the stages of the conversion - loading an image, computing the luminance of its pixels (with the
+ * scalar and the Vector API kernels, in fixed point and in doubles, and with Color getters), converting it with
+ * a cold cache (the brightness index is built) or a warm one (only matching), with ordered or error-diffusion
+ * dithering (warm), matching by shape with StructureImgCharMatcher (warm), and writing the HTML output - on
+ * synthetic images of several sizes, with several char sets and widths.
+ * The benchmarks run with jdk.incubator.vector added, so the vector kernels can be measured.
+ * Build and run with the gc profiler, so every result also has the bytes allocated per operation, and with
+ * the results written as JSON so runs of different versions can be compared:
+ *     mvn -B package
+ *     java -jar benchmarks/target/benchmarks.jar -prof gc -rf json
+ * A combination with a width over half the size of the image fails in its setup and isn't measured; narrow a
+ * run with -p, e.g. -p size=1024 -p width=64,256.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class ConversionBenchmark {
+    private static final String FONT = "Courier New";
+    private static final String DIGITS = "digits";
+    private static final String PARALLEL = "parallel";
+    private static final double RED_WEIGHT = 0.2126;
+    private static final double GREEN_WEIGHT = 0.7152;
+    private static final double BLUE_WEIGHT = 0.0722;
+
+    /**
+     * A synthetic image written as a PNG file, its decoded image and its pixels
+     */
+    @State(Scope.Benchmark)
+    public static class ImageState {
+        @Param({"256", "1024", "4096", "8192"})
+        public int size;
+
+        Path workDir;
+        String imageFile;
+        Image img;
+        int[] rgb;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            workDir = Files.createTempDirectory("ascii-benchmark");
+            imageFile = workDir.resolve("synthetic" + size + ".png").toString();
+            BufferedImage synthetic = syntheticImage(size);
+            ImageIO.write(synthetic, "png", Path.of(imageFile).toFile());
+            img = Image.fromFile(imageFile);
+            img.load();
+            rgb = synthetic.getRGB(0, 0, size, size, null, 0, size);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            try (Stream<Path> files = Files.walk(workDir)) {
+                for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * A luminance kernel, checked against the mean luminance of the image computed with Color getters
+     */
+    @State(Scope.Benchmark)
+    public static class KernelState {
+        @Param({"scalar", "vector"})
+        public String kernel;
+
+        @Param({"fixed", "double"})
+        public String arithmetic;
+
+        LuminanceKernel luminanceKernel;
+        double[] rowLuminances;
+
+        @Setup(Level.Trial)
+        public void setUp(ImageState image) {
+            LuminanceKernel.Arithmetic kernelArithmetic = arithmetic.equals("double") ?
+                    LuminanceKernel.Arithmetic.DOUBLE : LuminanceKernel.Arithmetic.FIXED_POINT;
+            luminanceKernel = kernel.equals("vector") ? LuminanceKernel.vector(kernelArithmetic) :
+                    LuminanceKernel.scalar(kernelArithmetic);
+            if (luminanceKernel == null) {
+                throw new IllegalStateException("jdk.incubator.vector isn't in the boot layer");
+            }
+            rowLuminances = new double[image.size];
+            double kernelMean = kernelLuminance(image, this);
+            double colorMean = colorLuminance(image);
+            if (Math.abs(kernelMean - colorMean) > LuminanceKernel.TOLERANCE) {
+                throw new IllegalStateException(String.format(Locale.ROOT,
+                        "luminance size=%d: %s %.15f, Color %.15f", image.size, luminanceKernel, kernelMean,
+                        colorMean));
+            }
+        }
+    }
+
+    /**
+     * The char set and width of a conversion of the image, with its chars for the output
+     */
+    @State(Scope.Benchmark)
+    public static class ConvertState {
+        @Param({"digits", "printable"})
+        public String charSet;
+
+        @Param({"64", "256", "1024"})
+        public int width;
+
+        Character[] chars;
+        char[][] converted;
+        String outFile;
+
+        @Setup(Level.Trial)
+        public void setUp(ImageState image) {
+            if (width > image.size / 2) {
+                throw new IllegalArgumentException("width " + width + " is over half the size " + image.size);
+            }
+            chars = charSet(charSet);
+            converted = new BrightnessImgCharMatcher(image.img, FONT).chooseChars(width, chars);
+            outFile = image.workDir.resolve("out" + image.size + ".html").toString();
+        }
+    }
+
+    /**
+     * The pool of a conversion, with the matchers and the cache that are measured warm
+     */
+    @State(Scope.Benchmark)
+    public static class MatcherState {
+        @Param({"serial", "parallel"})
+        public String mode;
+
+        ForkJoinPool pool;
+        BrightnessCache warmCache;
+        StructureImgCharMatcher structureMatcher;
+        BrightnessImgCharMatcher orderedMatcher;
+        BrightnessImgCharMatcher diffusionMatcher;
+
+        @Setup(Level.Trial)
+        public void setUp(ImageState image, ConvertState convert) {
+            pool = mode.equals(PARALLEL) ? ForkJoinPool.commonPool() : null;
+            warmCache = new BrightnessCache();
+            new BrightnessImgCharMatcher(image.img, FONT, pool, warmCache)
+                    .chooseChars(convert.width, convert.chars);
+            structureMatcher = new StructureImgCharMatcher(image.img, FONT, pool, new BrightnessCache());
+            structureMatcher.chooseChars(convert.width, convert.chars);
+            orderedMatcher = ditheringMatcher(image.img, pool, Dithering.ORDERED);
+            orderedMatcher.chooseChars(convert.width, convert.chars);
+            diffusionMatcher = ditheringMatcher(image.img, pool, Dithering.ERROR_DIFFUSION);
+            diffusionMatcher.chooseChars(convert.width, convert.chars);
+        }
+    }
+
+    @Benchmark
+    public Image load(ImageState image) {
+        // Image.fromFile only reads the header, the pixels are decoded by load
+        Image img = Image.fromFile(image.imageFile);
+        img.load();
+        return img;
+    }
+
+    @Benchmark
+    public double luminanceKernel(ImageState image, KernelState kernel) {
+        return kernelLuminance(image, kernel);
+    }
+
+    @Benchmark
+    public double luminanceColor(ImageState image) {
+        return colorLuminance(image);
+    }
+
+    @Benchmark
+    public char[][] convertCold(ImageState image, ConvertState convert, MatcherState matcher) {
+        return new BrightnessImgCharMatcher(image.img, FONT, matcher.pool, new BrightnessCache())
+                .chooseChars(convert.width, convert.chars);
+    }
+
+    @Benchmark
+    public char[][] convertWarm(ImageState image, ConvertState convert, MatcherState matcher) {
+        // a matcher answers a repeated render from its last one, so every warm run matches with a
+        // new matcher over a cache that already holds the brightnesses
+        return new BrightnessImgCharMatcher(image.img, FONT, matcher.pool, matcher.warmCache)
+                .chooseChars(convert.width, convert.chars);
+    }
+
+    @Benchmark
+    public char[][] convertStructure(ConvertState convert, MatcherState matcher) {
+        return matcher.structureMatcher.chooseChars(convert.width, convert.chars);
+    }
+
+    @Benchmark
+    public char[][] convertOrdered(ConvertState convert, MatcherState matcher) {
+        return matcher.orderedMatcher.chooseChars(convert.width, convert.chars);
+    }
+
+    @Benchmark
+    public char[][] convertDiffusion(ConvertState convert, MatcherState matcher) {
+        return matcher.diffusionMatcher.chooseChars(convert.width, convert.chars);
+    }
+
+    @Benchmark
+    public void outputHtml(ConvertState convert, Blackhole blackhole) throws IOException {
+        new HtmlAsciiOutput(convert.outFile, FONT).output(convert.converted);
+        blackhole.consume(Files.size(Path.of(convert.outFile)));
+    }
+
+    /**
+     *
+     * @return the mean luminance of the pixels of the image computed row by row with a kernel
+     */
+    private static double kernelLuminance(ImageState image, KernelState kernel) {
+        LuminanceKernel luminanceKernel = kernel.luminanceKernel;
+        double sum = 0;
+        for (int row = 0; row < image.size; row++) {
+            luminanceKernel.luminanceRow(image.rgb, row * image.size, image.size, kernel.rowLuminances);
+            sum += luminanceKernel.sum(kernel.rowLuminances, 0, image.size);
+        }
+        return sum / (luminanceKernel.maxLuminance() * image.rgb.length);
+    }
+
+    /**
+     *
+     * @return the mean luminance of the pixels of the image computed pixel by pixel with Color getters
+     */
+    private static double colorLuminance(ImageState image) {
+        double sum = 0;
+        for (int pixel : image.rgb) {
+            Color color = new Color(pixel);
+            sum += color.getRed() * RED_WEIGHT + color.getGreen() * GREEN_WEIGHT + color.getBlue() * BLUE_WEIGHT;
+        }
+        return sum / (255.0 * image.rgb.length);
+    }
+
+    private static BrightnessImgCharMatcher ditheringMatcher(Image img, ForkJoinPool pool, Dithering dithering) {
+        BrightnessImgCharMatcher matcher = new BrightnessImgCharMatcher(img, FONT, pool, new BrightnessCache());
+        matcher.setDithering(dithering);
+        return matcher;
+    }
+
+    /**
+     * An image with gradients and noise, so sub images have different brightnesses
+     * @param size -> width and height of the image
+     */
+    public static BufferedImage syntheticImage(int size) {
+        BufferedImage img = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(size);
+        int[] row = new int[size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int red = x * 255 / size;
+                int green = y * 255 / size;
+                int blue = random.nextInt(256);
+                row[x] = (red << 16) | (green << 8) | blue;
+            }
+            img.setRGB(0, y, size, 1, row, 0, size);
+        }
+        return img;
+    }
+
+    /**
+     *
+     * @param name -> DIGITS or PRINTABLE
+     * @return the chars of the char set
+     */
+    public static Character[] charSet(String name) {
+        char begin = name.equals(DIGITS) ? '0' : ' ';
+        char end = name.equals(DIGITS) ? '9' : '~';
+        Character[] chars = new Character[end - begin + 1];
+        for (char c = begin; c <= end; c++) {
+            chars[c - begin] = c;
+        }
+        return chars;
+    }
+}
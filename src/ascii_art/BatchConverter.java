@@ -0,0 +1,393 @@
+package ascii_art;
+
+import ascii_art.img_to_char.BrightnessCache;
+import ascii_art.img_to_char.BrightnessImgCharMatcher;
+import ascii_art.img_to_char.DiskBrightnessCache;
+import ascii_output.HtmlAsciiOutput;
+import ascii_output.TextAsciiOutput;
+import image.Image;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * Converts many images without any interaction - every image of a directory (or every file matching a glob
+ * pattern such as "photos/*.png") is converted to a file of the same name in an output directory. Images whose
+ * names differ only by their extension (a.png and a.jpg) keep it in the name of their output (a.png.html and
+ * a.jpg.html), so they don't overwrite each other.
+ * The conversions are scheduled as a pipeline: the images are decoded and the outputs are written on I/O
+ * threads (virtual threads, when the JVM has them and they were asked for), while the conversions run on a
+ * pool of a thread per processor, so decoding the next images overlaps converting the previous ones.
+ * At most a given number of images are in flight at once, which bounds the memory of decoded images.
+ * All the conversions share a single BrightnessCache, so the brightness of every char is computed once.
+ * With a disk cache, the sub image brightnesses of every image are also saved on disk, and images that were
+ * converted by an earlier run (at the same width) are converted from the saved brightnesses without decoding.
+ * At the end a summary of the throughput and the per image latency is printed.
+ * USAGE: java asciiArt --batch <directory or glob> <output directory> [--width n] [--chars digits|all|a-z]
+ *                      [--format html|html.gz|txt] [--threads n] [--in-flight n] [--virtual-threads]
+ *                      [--disk-cache directory] [--quantize]
+ */
+public class BatchConverter {
+    private static final String FONT = "Courier New";
+    private static final int MIN_PIXELS_PER_CHAR = 2;
+    private static final int DEFAULT_CHARS_IN_ROW = 64;
+    private static final int IN_FLIGHT_PER_THREAD = 2;
+    private static final long CHARS_CACHE_SIZE = 1 << 12;
+    private static final String HTML = "html";
+    private static final String COMPRESSED_HTML = "html.gz";
+    private static final String TEXT = "txt";
+    private static final String DIGITS = "digits";
+    private static final String ALL_CHARS = "all";
+    private static final char HYPHEN_CHAR = '-';
+    private static final char SPACE_CHAR = ' ';
+    private static final char LAST_CHAR_IN_ASCII = '~';
+    private static final String GLOB_CHARS = "*?[{";
+    private static final double NANOS_IN_MILLI = 1e6;
+    private static final double NANOS_IN_SECOND = 1e9;
+    private static final double BYTES_IN_MB = 1 << 20;
+
+    private final Path outputDirectory;
+    private final int charsInRow;
+    private final Character[] charSet;
+    private final String format;
+    private final int threads;
+    private final int maxInFlight;
+    private final boolean virtualThreads;
+    private final BrightnessCache cache;
+
+    /**
+     *
+     * @param outputDirectory -> the directory the converted images are written to
+     * @param charsInRow -> number of chars in a row of every converted image
+     * @param charSet -> the chars the converted images are made of
+     * @param format -> HTML, COMPRESSED_HTML or TEXT
+     * @param threads -> number of threads that convert images
+     * @param maxInFlight -> maximal number of images that are decoded, converted or written at once
+     * @param virtualThreads -> whether to decode and write on virtual threads, if the JVM has them
+     * @param diskCache -> where sub image brightnesses are saved for following runs, null for none
+     */
+    public BatchConverter(Path outputDirectory, int charsInRow, Character[] charSet, String format,
+                          int threads, int maxInFlight, boolean virtualThreads,
+                          DiskBrightnessCache diskCache) {
+        this.outputDirectory = outputDirectory;
+        this.charsInRow = charsInRow;
+        this.charSet = charSet;
+        this.format = format;
+        this.threads = threads;
+        this.maxInFlight = maxInFlight;
+        this.virtualThreads = virtualThreads;
+        // the images are all different, so only the brightnesses of the chars are worth keeping in memory
+        cache = new BrightnessCache(0, 0, CHARS_CACHE_SIZE, diskCache);
+    }
+
+    /**
+     * Parses the arguments of the batch mode (following the --batch flag) and converts the images
+     * @param args -> the input, the output directory and then the optional flags
+     */
+    public static void main(String[] args) throws Exception {
+        int charsInRow = DEFAULT_CHARS_IN_ROW;
+        Character[] charSet = parseCharSet(DIGITS);
+        String format = HTML;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int maxInFlight = -1;
+        boolean virtualThreads = false;
+        Path diskCacheDirectory = null;
+        boolean quantize = false;
+        for (int i = 2; i < args.length; i++) {
+            switch (args[i]) {
+                case "--width":
+                    charsInRow = Integer.parseInt(args[++i]);
+                    break;
+                case "--chars":
+                    charSet = parseCharSet(args[++i]);
+                    break;
+                case "--format":
+                    format = args[++i];
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--in-flight":
+                    maxInFlight = Integer.parseInt(args[++i]);
+                    break;
+                case "--virtual-threads":
+                    virtualThreads = true;
+                    break;
+                case "--disk-cache":
+                    diskCacheDirectory = Path.of(args[++i]);
+                    break;
+                case "--quantize":
+                    quantize = true;
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    return;
+            }
+        }
+        if (!format.equals(HTML) && !format.equals(COMPRESSED_HTML) && !format.equals(TEXT)) {
+            System.err.println("Unknown format " + format);
+            return;
+        }
+        if (maxInFlight <= 0) {
+            maxInFlight = threads * IN_FLIGHT_PER_THREAD;
+        }
+        List<Path> images = listInput(args[0]);
+        Path outputDirectory = Path.of(args[1]);
+        Files.createDirectories(outputDirectory);
+        DiskBrightnessCache diskCache =
+                diskCacheDirectory == null ? null : new DiskBrightnessCache(diskCacheDirectory, quantize);
+        new BatchConverter(outputDirectory, charsInRow, charSet, format, threads, maxInFlight, virtualThreads,
+                diskCache).convertAll(images);
+    }
+
+    /**
+     *
+     * @param name -> DIGITS, ALL_CHARS, a range of chars such as "a-z" or the chars themselves
+     * @return the chars of the char set
+     */
+    static Character[] parseCharSet(String name) {
+        char begin;
+        char end;
+        if (name.equals(DIGITS)) {
+            begin = '0';
+            end = '9';
+        } else if (name.equals(ALL_CHARS)) {
+            begin = SPACE_CHAR;
+            end = LAST_CHAR_IN_ASCII;
+        } else if (name.length() == 3 && name.charAt(1) == HYPHEN_CHAR) {
+            begin = (char) Math.min(name.charAt(0), name.charAt(2));
+            end = (char) Math.max(name.charAt(0), name.charAt(2));
+        } else {
+            return name.chars().distinct().mapToObj(c -> (char) c).toArray(Character[]::new);
+        }
+        Character[] chars = new Character[end - begin + 1];
+        for (char c = begin; c <= end; c++) {
+            chars[c - begin] = c;
+        }
+        return chars;
+    }
+
+    /**
+     *
+     * @param input -> a directory, a glob pattern of file names (e.g. "photos/*.png") or a single file
+     * @return the files to convert, sorted by name
+     */
+    static List<Path> listInput(String input) throws IOException {
+        Path path = Path.of(input);
+        List<Path> files = new ArrayList<>();
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path, Files::isRegularFile)) {
+                stream.forEach(files::add);
+            }
+        } else if (input.chars().anyMatch(c -> GLOB_CHARS.indexOf(c) >= 0)) {
+            Path directory = path.getParent() == null ? Path.of(".") : path.getParent();
+            try (DirectoryStream<Path> stream =
+                         Files.newDirectoryStream(directory, path.getFileName().toString())) {
+                stream.forEach(files::add);
+            }
+        } else {
+            files.add(path);
+        }
+        files.sort(null);
+        return files;
+    }
+
+    /**
+     * Converts the images and prints a summary of the throughput
+     * @param images -> the image files to convert
+     * @return the number of images that were converted successfully
+     * @throws InterruptedException in case the thread was interrupted while waiting for the conversions
+     */
+    public int convertAll(List<Path> images) throws InterruptedException {
+        ExecutorService io = newIoExecutor();
+        ExecutorService converters = Executors.newFixedThreadPool(threads);
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        long[] latencies = new long[images.size()];
+        long[] bytesRead = new long[images.size()];
+        boolean[] converted = new boolean[images.size()];
+        List<String> outputNames = outputNames(images);
+        CountDownLatch done = new CountDownLatch(images.size());
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < images.size(); i++) {
+                int job = i;
+                Path image = images.get(job);
+                inFlight.acquire();
+                long jobStart = System.nanoTime();
+                CompletableFuture.supplyAsync(() -> decode(image), io)
+                        .thenApplyAsync(this::convert, converters)
+                        .thenAcceptAsync(chars -> write(outputNames.get(job), chars), io)
+                        .whenComplete((ignored, e) -> {
+                            if (e == null) {
+                                latencies[job] = System.nanoTime() - jobStart;
+                                bytesRead[job] = fileSize(image);
+                                converted[job] = true;
+                            } else {
+                                Throwable cause = e.getCause() == null ? e : e.getCause();
+                                Logger.getGlobal().severe(String.format("Failed to convert \"%s\": %s",
+                                        image, cause.getMessage()));
+                            }
+                            inFlight.release();
+                            done.countDown();
+                        });
+            }
+            done.await();
+        } finally {
+            io.shutdownNow();
+            converters.shutdownNow();
+        }
+        return printSummary(System.nanoTime() - start, latencies, bytesRead, converted);
+    }
+
+    /**
+     *
+     * @return an executor of a virtual thread per task if asked for and the JVM has one, otherwise a pool
+     *         of a thread per image in flight
+     */
+    private ExecutorService newIoExecutor() {
+        if (virtualThreads) {
+            try {
+                // looked up reflectively so the program still runs on JVMs without virtual threads
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+                        .invoke(null);
+            } catch (ReflectiveOperationException e) {
+                Logger.getGlobal().warning("Virtual threads are not available, using platform threads");
+            }
+        }
+        return Executors.newFixedThreadPool(maxInFlight);
+    }
+
+    /**
+     * Opens an image and decodes it here, on an I/O thread, so the converters don't wait for the decoder -
+     * unless its sub images brightnesses are saved on disk, and the conversion never reads its pixels
+     */
+    private Image decode(Path image) {
+        Image img = Image.fromFile(image.toString());
+        if (img == null) {
+            throw new CompletionException(new IOException("Failed to open image file " + image));
+        }
+        if (!newMatcher(img).isSavedOnDisk(charsInRowOf(img))) {
+            img.load();
+        }
+        return img;
+    }
+
+    private char[][] convert(Image img) {
+        return newMatcher(img).chooseChars(charsInRowOf(img), charSet);
+    }
+
+    private BrightnessImgCharMatcher newMatcher(Image img) {
+        // images are converted in parallel with each other, so each one is converted serially
+        return new BrightnessImgCharMatcher(img, FONT, null, cache);
+    }
+
+    private int charsInRowOf(Image img) {
+        return Math.max(1, Math.min(charsInRow, img.getWidth() / MIN_PIXELS_PER_CHAR));
+    }
+
+    /**
+     * Writes the output of an image, failing the conversion of the image if the file couldn't be written
+     * @param name -> the name of the output, without the extension of the format
+     */
+    private void write(String name, char[][] chars) {
+        String filename = outputDirectory.resolve(name + "." + format).toString();
+        try {
+            if (format.equals(TEXT)) {
+                new TextAsciiOutput(filename).writeFile(chars);
+            } else {
+                new HtmlAsciiOutput(filename, FONT).writeFile(chars, null);
+            }
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * The output of an image is named after it without its extension, unless that name is shared with other
+     * images (a.png and a.jpg), in which case the extension is kept
+     * @param images -> the image files to convert
+     * @return the name of the output of every image, without the extension of the format
+     */
+    static List<String> outputNames(List<Path> images) {
+        List<String> names = new ArrayList<>();
+        for (Path image : images) {
+            String name = image.getFileName().toString();
+            int extension = name.lastIndexOf('.');
+            names.add(extension > 0 ? name.substring(0, extension) : name);
+        }
+        // a kept extension may collide with a name that was stripped of another extension (a.png.txt)
+        boolean collided = true;
+        while (collided) {
+            Map<String, Integer> counts = new HashMap<>();
+            names.forEach(name -> counts.merge(name, 1, Integer::sum));
+            collided = false;
+            for (int i = 0; i < names.size(); i++) {
+                String fileName = images.get(i).getFileName().toString();
+                if (counts.get(names.get(i)) > 1 && !names.get(i).equals(fileName)) {
+                    names.set(i, fileName);
+                    collided = true;
+                }
+            }
+        }
+        return names;
+    }
+
+    private static long fileSize(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Prints the number of converted images, their throughput in images and input megabytes per second,
+     * and the median and 99th percentile of the time it took to decode, convert and write an image
+     * @return the number of images that were converted successfully
+     */
+    private static int printSummary(long elapsed, long[] latencies, long[] bytesRead, boolean[] converted) {
+        long[] successful = new long[latencies.length];
+        int numConverted = 0;
+        long totalBytes = 0;
+        for (int i = 0; i < latencies.length; i++) {
+            if (converted[i]) {
+                successful[numConverted++] = latencies[i];
+                totalBytes += bytesRead[i];
+            }
+        }
+        successful = Arrays.copyOf(successful, numConverted);
+        Arrays.sort(successful);
+        double seconds = elapsed / NANOS_IN_SECOND;
+        System.out.println(String.format(Locale.ROOT,
+                "Converted %d of %d images in %.2f s: %.2f images/s, %.2f MB/s, " +
+                        "latency p50 %.1f ms, p99 %.1f ms",
+                numConverted, latencies.length, seconds, numConverted / seconds,
+                totalBytes / BYTES_IN_MB / seconds,
+                percentile(successful, 0.5) / NANOS_IN_MILLI, percentile(successful, 0.99) / NANOS_IN_MILLI));
+        return numConverted;
+    }
+
+    /**
+     *
+     * @param sorted -> sorted values
+     * @param fraction -> between 0 and 1
+     * @return the value that the given fraction of the values are not above (nearest rank), 0 if empty
+     */
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+}
@@ -0,0 +1,427 @@
+package ascii_art;
+
+import ascii_art.img_to_char.BrightnessCache;
+import ascii_art.img_to_char.BrightnessImgCharMatcher;
+import ascii_art.img_to_char.LruCache;
+import ascii_output.HtmlAsciiOutput;
+import ascii_output.TextAsciiOutput;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import image.Image;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * An embedded HTTP service that converts images to ASCII images, so other tools can get renders without
+ * starting a JVM for every image.
+ * POST /convert?width=n&chars=digits&format=html - converts the image in the request body.
+ * GET /convert?path=file&width=n&chars=digits&format=txt - converts an image file under the image directory.
+ * GET /metrics - the counters, the queue and the latency percentiles of the service, as plain text.
+ * Requests for the same image (by the SHA-256 of its bytes) with the same parameters are answered by a single
+ * conversion: a request that arrives while an identical one is converted waits for its result instead of
+ * converting again, and recent results are kept in an LRU cache bounded by their size.
+ * The chars are parsed like in the batch mode, and the format is "html" or "txt".
+ * The service only listens on the loopback address unless asked to listen on every address (--bind-all), since
+ * it reads the files of its image directory to anyone that can reach it.
+ */
+public class ConversionServer {
+    private static final String FONT = "Courier New";
+    private static final int MIN_PIXELS_PER_CHAR = 2;
+    private static final int DEFAULT_CHARS_IN_ROW = 64;
+    private static final String DEFAULT_CHARS = "digits";
+    private static final String HTML = "html";
+    private static final String TEXT = "txt";
+    private static final String HTML_CONTENT_TYPE = "text/html; charset=utf-8";
+    private static final String TEXT_CONTENT_TYPE = "text/plain; charset=utf-8";
+    private static final int DEFAULT_PORT = 8080;
+    private static final String BIND_ALL = "--bind-all";
+    private static final long CHARS_CACHE_SIZE = 1 << 12;
+    private static final long DEFAULT_MAX_RESULTS_BYTES = 64L << 20;
+    private static final long MAX_IMAGE_BYTES = 64L << 20;
+    // a small file may declare a huge image, so the size is checked before the pixels are decoded
+    private static final long MAX_IMAGE_PIXELS = 1L << 25;
+    private static final int RESPONSE_BUFFER_SIZE = 1 << 16;
+    private static final int LATENCY_WINDOW = 1024;
+    private static final double NANOS_IN_MILLI = 1e6;
+    private static final int OK = 200;
+    private static final int BAD_REQUEST = 400;
+    private static final int NOT_FOUND = 404;
+    private static final int METHOD_NOT_ALLOWED = 405;
+    private static final int PAYLOAD_TOO_LARGE = 413;
+    private static final int SERVER_ERROR = 500;
+
+    /**
+     * Identifies a conversion - two requests with equal keys have the same result
+     */
+    record RequestKey(String imageHash, int charsInRow, String sortedChars, String format) {
+    }
+
+    /**
+     * A request that can't be answered, with the HTTP status to answer it with
+     */
+    private static class RequestException extends Exception {
+        private static final long serialVersionUID = 1L;
+        private final int status;
+
+        RequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private final HttpServer server;
+    private final ThreadPoolExecutor workers;
+    private final Path imageDirectory;
+    // every request is a new image, so only the brightnesses of the chars are worth keeping
+    private final BrightnessCache cache = new BrightnessCache(0, 0, CHARS_CACHE_SIZE);
+    private final ConcurrentHashMap<RequestKey, CompletableFuture<byte[]>> inProgress =
+            new ConcurrentHashMap<>();
+    private final LruCache<RequestKey, byte[]> results;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder conversions = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final long[] latencies = new long[LATENCY_WINDOW];
+    private long numLatencies = 0;
+
+    /**
+     * A service that only listens on the loopback address
+     * @param port -> the port to listen on (0 for any free port)
+     * @param imageDirectory -> the directory that images given by path are looked up in
+     * @param threads -> number of threads that handle requests
+     * @param maxResultsBytes -> bound on the memory of the cached results
+     * @throws IOException in case the port couldn't be bound
+     */
+    public ConversionServer(int port, Path imageDirectory, int threads, long maxResultsBytes)
+            throws IOException {
+        this(InetAddress.getLoopbackAddress(), port, imageDirectory, threads, maxResultsBytes);
+    }
+
+    /**
+     *
+     * @param address -> the address to listen on, null for every address of the host
+     * @param port -> the port to listen on (0 for any free port)
+     * @param imageDirectory -> the directory that images given by path are looked up in
+     * @param threads -> number of threads that handle requests
+     * @param maxResultsBytes -> bound on the memory of the cached results
+     * @throws IOException in case the port couldn't be bound
+     */
+    public ConversionServer(InetAddress address, int port, Path imageDirectory, int threads,
+                            long maxResultsBytes) throws IOException {
+        this.imageDirectory = imageDirectory.toAbsolutePath().normalize();
+        results = new LruCache<>(maxResultsBytes, result -> result.length);
+        workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>());
+        server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        server.setExecutor(workers);
+        server.createContext("/convert", this::handleConvert);
+        server.createContext("/metrics", this::handleMetrics);
+    }
+
+    /**
+     * Runs the service until the process is stopped
+     * @param args -> [port] [image directory] [--bind-all]
+     */
+    public static void main(String[] args) throws IOException {
+        List<String> positional = new ArrayList<>(Arrays.asList(args));
+        boolean bindAll = positional.remove(BIND_ALL);
+        int port = positional.size() > 0 ? Integer.parseInt(positional.get(0)) : DEFAULT_PORT;
+        Path imageDirectory = Path.of(positional.size() > 1 ? positional.get(1) : ".");
+        ConversionServer server = new ConversionServer(bindAll ? null : InetAddress.getLoopbackAddress(), port,
+                imageDirectory, Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_RESULTS_BYTES);
+        server.start();
+        System.out.println("Listening on " + server.server.getAddress());
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests and waits for the current ones to be answered
+     * @param delaySeconds -> the longest time to wait for the current requests
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        workers.shutdown();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handleConvert(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        requests.increment();
+        try {
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            byte[] image = readImage(exchange, params);
+            int charsInRow = params.containsKey("width") ?
+                    parseInt(params.get("width")) : DEFAULT_CHARS_IN_ROW;
+            Character[] charSet = BatchConverter.parseCharSet(params.getOrDefault("chars", DEFAULT_CHARS));
+            String format = params.getOrDefault("format", HTML);
+            if (charsInRow <= 0 || charSet.length == 0 || !(format.equals(HTML) || format.equals(TEXT))) {
+                throw new RequestException(BAD_REQUEST, "Illegal width, chars or format");
+            }
+            Arrays.sort(charSet);
+            StringBuilder sortedChars = new StringBuilder();
+            for (Character c : charSet) {
+                sortedChars.append(c);
+            }
+            RequestKey key = new RequestKey(sha256(image), charsInRow, sortedChars.toString(), format);
+            byte[] body = getResult(key, image, charSet);
+            send(exchange, OK, format.equals(HTML) ? HTML_CONTENT_TYPE : TEXT_CONTENT_TYPE, body);
+        } catch (RequestException e) {
+            failures.increment();
+            send(exchange, e.status, TEXT_CONTENT_TYPE, e.getMessage().getBytes(StandardCharsets.UTF_8));
+        } catch (RuntimeException e) {
+            failures.increment();
+            Logger.getGlobal().severe("Failed to convert an image: " + e);
+            send(exchange, SERVER_ERROR, TEXT_CONTENT_TYPE,
+                    "Failed to convert the image".getBytes(StandardCharsets.UTF_8));
+        } finally {
+            recordLatency(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Answers a request from the cached results, from an identical conversion that is in progress, or by
+     * converting the image
+     */
+    private byte[] getResult(RequestKey key, byte[] image, Character[] charSet) throws RequestException {
+        byte[] result = results.get(key);
+        if (result != null) {
+            return result;
+        }
+        CompletableFuture<byte[]> conversion = new CompletableFuture<>();
+        CompletableFuture<byte[]> identical = inProgress.putIfAbsent(key, conversion);
+        if (identical != null) {
+            coalesced.increment();
+            try {
+                return identical.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RequestException) {
+                    throw (RequestException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        try {
+            // an identical conversion may have ended between the lookup and registering this one
+            result = results.get(key);
+            if (result == null) {
+                conversions.increment();
+                result = convert(image, key, charSet);
+                results.put(key, result);
+            }
+            conversion.complete(result);
+            return result;
+        } catch (RequestException | RuntimeException e) {
+            conversion.completeExceptionally(e);
+            throw e;
+        } finally {
+            inProgress.remove(key, conversion);
+        }
+    }
+
+    private byte[] convert(byte[] image, RequestKey key, Character[] charSet) throws RequestException {
+        Image img = Image.fromBufferedImage(decode(image));
+        int charsInRow = Math.max(1, Math.min(key.charsInRow(), img.getWidth() / MIN_PIXELS_PER_CHAR));
+        // requests are handled in parallel with each other, so each image is converted serially
+        char[][] chars =
+                new BrightnessImgCharMatcher(img, FONT, null, cache).chooseChars(charsInRow, charSet);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            if (key.format().equals(HTML)) {
+                // the output is never written to a file, only to the response
+                new HtmlAsciiOutput(null, FONT, RESPONSE_BUFFER_SIZE, false)
+                        .write(chars, Channels.newChannel(out));
+            } else {
+                TextAsciiOutput.write(chars, new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) { // writing to memory doesn't fail
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads the dimensions of the image from its header, and decodes it only if it has at most
+     * MAX_IMAGE_PIXELS pixels
+     * @param image -> the encoded image
+     * @return the decoded image
+     * @throws RequestException in case the format is not supported, or the image has too many pixels
+     */
+    private static BufferedImage decode(byte[] image) throws RequestException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(image))) {
+            Iterator<ImageReader> readers = input == null ? Collections.emptyIterator() :
+                    ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new RequestException(BAD_REQUEST, "Unsupported image format");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                if ((long) reader.getWidth(0) * reader.getHeight(0) > MAX_IMAGE_PIXELS) {
+                    throw new RequestException(PAYLOAD_TOO_LARGE, "The image has too many pixels");
+                }
+                return reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            throw new RequestException(BAD_REQUEST, "Unsupported image format");
+        }
+    }
+
+    /**
+     *
+     * @return the bytes of the uploaded image, or of the image file of the path parameter
+     * @throws RequestException in case the request has no image, or it couldn't be read
+     */
+    private byte[] readImage(HttpExchange exchange, Map<String, String> params) throws RequestException {
+        String method = exchange.getRequestMethod();
+        if (method.equals("POST")) {
+            try (InputStream body = exchange.getRequestBody()) {
+                byte[] image = body.readNBytes((int) MAX_IMAGE_BYTES + 1);
+                if (image.length > MAX_IMAGE_BYTES) {
+                    throw new RequestException(PAYLOAD_TOO_LARGE, "The image is too large");
+                }
+                return image;
+            } catch (IOException e) {
+                throw new RequestException(BAD_REQUEST, "Failed to read the image");
+            }
+        }
+        if (!method.equals("GET")) {
+            throw new RequestException(METHOD_NOT_ALLOWED, "Use GET with a path or POST an image");
+        }
+        String path = params.get("path");
+        if (path == null) {
+            throw new RequestException(BAD_REQUEST, "Missing the path of the image");
+        }
+        Path file = imageDirectory.resolve(path).normalize();
+        // don't serve files outside the image directory
+        if (!file.startsWith(imageDirectory) || !Files.isRegularFile(file)) {
+            throw new RequestException(NOT_FOUND, "No such image: " + path);
+        }
+        try {
+            if (Files.size(file) > MAX_IMAGE_BYTES) {
+                throw new RequestException(PAYLOAD_TOO_LARGE, "The image is too large");
+            }
+            return Files.readAllBytes(file);
+        } catch (NoSuchFileException e) { // deleted since it was checked
+            throw new RequestException(NOT_FOUND, "No such image: " + path);
+        } catch (IOException e) {
+            Logger.getGlobal().severe(String.format("Failed to read \"%s\": %s", file, e));
+            throw new RequestException(SERVER_ERROR, "Failed to read the image");
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        long[] window;
+        synchronized (latencies) {
+            window = Arrays.copyOf(latencies, (int) Math.min(numLatencies, LATENCY_WINDOW));
+        }
+        Arrays.sort(window);
+        String metrics = String.format(Locale.ROOT,
+                "requests %d%n" +
+                        "conversions %d%n" +
+                        "coalesced %d%n" +
+                        "result_cache_hits %d%n" +
+                        "result_cache_bytes %d%n" +
+                        "failures %d%n" +
+                        "conversions_in_progress %d%n" +
+                        "active_requests %d%n" +
+                        "queued_requests %d%n" +
+                        "latency_p50_ms %.3f%n" +
+                        "latency_p99_ms %.3f%n" +
+                        "latency_max_ms %.3f%n" +
+                        "brightness_cache %s%n",
+                requests.sum(), conversions.sum(), coalesced.sum(), results.getHits(), results.getWeight(),
+                failures.sum(), inProgress.size(), workers.getActiveCount(), workers.getQueue().size(),
+                percentile(window, 0.5) / NANOS_IN_MILLI, percentile(window, 0.99) / NANOS_IN_MILLI,
+                percentile(window, 1) / NANOS_IN_MILLI, cache);
+        send(exchange, OK, TEXT_CONTENT_TYPE, metrics.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Saves the latency of a request in a window of the latest requests
+     */
+    private void recordLatency(long nanos) {
+        synchronized (latencies) {
+            latencies[(int) (numLatencies++ % LATENCY_WINDOW)] = nanos;
+        }
+    }
+
+    /**
+     *
+     * @param sorted -> sorted values
+     * @param fraction -> between 0 and 1
+     * @return the value that the given fraction of the values are not above (nearest rank), 0 if empty
+     */
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query == null) {
+            return params;
+        }
+        for (String param : query.split("&")) {
+            int equals = param.indexOf('=');
+            if (equals > 0) {
+                params.put(URLDecoder.decode(param.substring(0, equals), StandardCharsets.UTF_8),
+                        URLDecoder.decode(param.substring(equals + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
+
+    private static int parseInt(String value) throws RequestException {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new RequestException(BAD_REQUEST, "Not a number: " + value);
+        }
+    }
+
+    private static String sha256(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) { // every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,12 +1,52 @@
 package ascii_art;
 
+import ascii_art.animation.AnimationPipeline;
+import ascii_output.ConsoleAsciiOutput;
+import ascii_output.DeltaFrameOutput;
 import image.Image;
+
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 public class Driver {
+    private static final String FRAMES_MODE = "--frames";
+    private static final String PLAY_MODE = "--play";
+    private static final String BATCH_MODE = "--batch";
+    private static final String SERVE_MODE = "--serve";
+    private static final String FONT = "Courier New";
+    private static final int DEFAULT_CHARS_IN_ROW = 64;
+    private static final double DEFAULT_FRAMES_PER_SECOND = 24;
+    private static final int FRAMES_IN_FLIGHT_PER_THREAD = 4;
+
     public static void main(String[] args) throws Exception {
+        if (args.length >= 3 && args[0].equals(FRAMES_MODE)) {
+            convertFrames(args);
+            return;
+        }
+        if (args.length >= 3 && args[0].equals(BATCH_MODE)) {
+            BatchConverter.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length >= 1 && args[0].equals(SERVE_MODE)) {
+            ConversionServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length >= 2 && args[0].equals(PLAY_MODE)) {
+            double framesPerSecond =
+                    args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_FRAMES_PER_SECOND;
+            AnimationPipeline.play(args[1], new ConsoleAsciiOutput(true), framesPerSecond);
+            return;
+        }
         if (args.length != 1) {
-            System.err.println("USAGE: java asciiArt ");
+            System.err.println("USAGE: java asciiArt <image>\n" +
+                    "       java asciiArt --frames <frames directory or animated image> <out file> " +
+                    "[chars in row]\n" +
+                    "       java asciiArt --play <animation file> [frames per second]\n" +
+                    "       java asciiArt --batch <directory or glob> <output directory> [--width n] " +
+                    "[--chars digits|all|a-z] [--format html|html.gz|txt] [--threads n] [--in-flight n] " +
+                    "[--virtual-threads] [--disk-cache directory] [--quantize]\n" +
+                    "       java asciiArt --serve [port] [image directory] [--bind-all]");
             return;
         }
         Image img = Image.fromFile(args[0]);
@@ -16,4 +56,23 @@ public class Driver {
         }
         new Shell(img).run();
     }
-}
\ No newline at end of file
+
+    /**
+     * Converts the frames of an animation into an animation file of ASCII frames
+     */
+    private static void convertFrames(String[] args) throws Exception {
+        int charsInRow = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_CHARS_IN_ROW;
+        Character[] charSet = new Character[10];
+        for (int i = 0; i < charSet.length; i++) {
+            charSet[i] = (char) ('0' + i);
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        AnimationPipeline pipeline = new AnimationPipeline(FONT, charsInRow, charSet, threads,
+                threads * FRAMES_IN_FLIGHT_PER_THREAD);
+        int numFrames;
+        try (DeltaFrameOutput output = new DeltaFrameOutput(args[2])) {
+            numFrames = pipeline.convert(Path.of(args[1]), output);
+        } // the last frames are only written when the file is closed
+        System.out.println("Converted " + numFrames + " frames to " + args[2]);
+    }
+}
@@ -1,12 +1,25 @@
 package ascii_art;
 
+import ascii_art.img_to_char.BrightnessCache;
 import ascii_art.img_to_char.BrightnessImgCharMatcher;
+import ascii_art.img_to_char.CharRenderer;
+import ascii_art.img_to_char.Dithering;
+import ascii_art.img_to_char.GlyphCache;
+import ascii_art.img_to_char.ImgCharMatcher;
+import ascii_art.img_to_char.StructureImgCharMatcher;
 import ascii_output.AsciiOutput;
 import ascii_output.ConsoleAsciiOutput;
 import ascii_output.HtmlAsciiOutput;
 import image.Image;
+import metrics.PipelineMetrics;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.HashSet;
 import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
 
 /**
  * This class implements the entire user interface when running the program
@@ -14,6 +27,7 @@ import java.util.Scanner;
  */
 public class Shell {
     private static final int MIN_PIXELS_PER_CHAR = 2;
+    private static final int MIN_SAMPLES_PER_CHAR = 8;
     private static final int INITIAL_CHARS_IN_ROW = 64;
     private static final char SPACE_CHAR = ' ';
     private static final char LAST_CHAR_IN_ASCII = '~';
@@ -31,9 +45,28 @@ public class Shell {
     private static final String RESOLUTION_DOWN = "res down";
     private static final String CONSOLE = "console";
     private static final String RENDER = "render";
+    private static final String STATS = "stats";
+    private static final String COLOR = "color";
+    private static final String COLOR_WITH_LEVELS = "color ";
+    private static final String WIDTH_WITH_CHARS = "width ";
+    private static final String CHANGE_WIDTH = "change the width";
+    private static final String MONO = "mono";
+    private static final String MATCH_SHAPE = "match shape";
+    private static final String MATCH_BRIGHTNESS = "match brightness";
+    private static final String COLOR_SET_TO = "Color levels set to ";
+    private static final String STATS_JSON = "stats json";
+    private static final String STATS_ON = "stats on";
+    private static final String STATS_OFF = "stats off";
+    private static final String STATS_ARE_OFF = "The stages are not timed - turn it on with \"" + STATS_ON +
+            "\" (or run with -Dascii_art.metrics=true)";
+    private static final String DITHER_ORDERED = "dither ordered";
+    private static final String DITHER_ERROR_DIFFUSION = "dither fs";
+    private static final String DITHER_OFF = "dither off";
+    private static final Path STATS_FILE = Path.of("stats.json");
     private static final String FONT = "Courier New";
     private static final String EMPTY_STRING = "";
     private static final String OUT_FILE = "out.html";
+    private static final Path GLYPH_CACHE_FILE = Path.of("glyphs.bin");
     private static final String EXIT_MESSAGE = "exit";
     private static final String MESSAGE_FOR_USER = ">>> ";
     private static final String SPACE_STRING = " ";
@@ -42,11 +75,24 @@ public class Shell {
     private static final int LEGAL_BEGIN_CHAR = 33;
     private static final int LEGAL_END_CHAR = 126;
     private static final String NO_CHARS_ERROR_MESSAGE = "Can not render without any chars";
+    private static final String DECODE_ERROR_MESSAGE = "Did not render since the image could not be decoded: ";
     private final int minCharsInRow;
     private final int maxCharsInRow;
     private int charsInRow;
     private final Image img;
     private final HashSet<Character> chars;
+    private final BrightnessCache cache = new BrightnessCache();
+    // the matcher of the image at the resolution of the last render and its downsampling factor - a matcher
+    // holds its resolution of the image, so only the current one is kept
+    private BrightnessImgCharMatcher imgCharMatcher;
+    private int imgCharMatcherFactor;
+    // the same, for matching the shapes of the chars - a resolution shows at least MIN_SAMPLES_PER_CHAR pixels
+    // in each direction of a sub image, the 8x8 cells the shapes are compared in
+    private StructureImgCharMatcher shapeMatcher;
+    private int shapeMatcherFactor;
+    private boolean colored = false;
+    private boolean matchShapes = false;
+    private Dithering dithering = Dithering.NONE;
     AsciiOutput asciiOutput;
 
     /**
@@ -60,9 +106,73 @@ public class Shell {
         chars = new HashSet<>();
         initiateChars();
         minCharsInRow = Math.max(1, img.getWidth()/img.getHeight());
-        maxCharsInRow = img.getWidth() / MIN_PIXELS_PER_CHAR;
+        maxCharsInRow = Math.max(minCharsInRow, img.getContentBounds().width / MIN_PIXELS_PER_CHAR);
         charsInRow = Math.max(Math.min(INITIAL_CHARS_IN_ROW, maxCharsInRow), minCharsInRow);
         asciiOutput = new HtmlAsciiOutput(OUT_FILE, FONT);
+        loadGlyphCache();
+        registerCounters();
+    }
+
+    /**
+     * Adds the counters of the caches to the metrics, so the "stats" command can show them. The stages
+     * themselves are only timed once the "stats on" command (or -Dascii_art.metrics=true) turns it on.
+     */
+    private void registerCounters() {
+        cache.registerCounters("cache");
+        GlyphCache glyphCache = CharRenderer.getGlyphCache();
+        PipelineMetrics.registerCounter("glyphs.hits", glyphCache::getHits);
+        PipelineMetrics.registerCounter("glyphs.misses", glyphCache::getMisses);
+    }
+
+    /**
+     * Prints the metrics of the conversion stages and of the caches
+     */
+    private void printStats() {
+        if (!PipelineMetrics.isEnabled()) {
+            System.out.println(STATS_ARE_OFF);
+        }
+        System.out.print(PipelineMetrics.summary());
+    }
+
+    /**
+     * Writes the metrics of the conversion stages and of the caches to STATS_FILE
+     */
+    private void writeStats() {
+        try {
+            PipelineMetrics.writeJson(STATS_FILE);
+        } catch (IOException e) {
+            Logger.getGlobal().warning(String.format("Failed to write stats to \"%s\"", STATS_FILE));
+        }
+    }
+
+    /**
+     * Loads the glyphs saved by a previous run, if there are any, so chars are not rendered again
+     */
+    private static void loadGlyphCache() {
+        if (Files.exists(GLYPH_CACHE_FILE)) {
+            try {
+                CharRenderer.getGlyphCache().load(GLYPH_CACHE_FILE);
+            } catch (IOException e) {
+                Logger.getGlobal().warning(
+                        String.format("Failed to load glyphs from \"%s\"", GLYPH_CACHE_FILE));
+            }
+        }
+    }
+
+    /**
+     * Saves the glyphs of all the legal chars for the following runs, unless they are already saved
+     */
+    private void saveGlyphCache() {
+        GlyphCache glyphCache = CharRenderer.getGlyphCache();
+        getImgCharMatcher().prepareChars(SPACE_CHAR, LAST_CHAR_IN_ASCII);
+        if (glyphCache.isModified() || !Files.exists(GLYPH_CACHE_FILE)) {
+            try {
+                glyphCache.save(GLYPH_CACHE_FILE);
+            } catch (IOException e) {
+                Logger.getGlobal().warning(
+                        String.format("Failed to save glyphs to \"%s\"", GLYPH_CACHE_FILE));
+            }
+        }
     }
 
     /**
@@ -88,6 +198,7 @@ public class Shell {
             userInput = scanner.nextLine();
             handleUserInput(userInput);
         }
+        saveGlyphCache();
     }
 
     /**
@@ -108,29 +219,165 @@ public class Shell {
             case CONSOLE:
                 asciiOutput = new ConsoleAsciiOutput();
                 break;
+            case COLOR:
+                colored = true;
+                asciiOutput = new HtmlAsciiOutput(OUT_FILE, FONT);
+                break;
+            case MONO:
+                colored = false;
+                break;
+            case MATCH_SHAPE:
+                matchShapes = true;
+                break;
+            case MATCH_BRIGHTNESS:
+                matchShapes = false;
+                break;
+            case DITHER_ORDERED:
+                dithering = Dithering.ORDERED;
+                break;
+            case DITHER_ERROR_DIFFUSION:
+                dithering = Dithering.ERROR_DIFFUSION;
+                break;
+            case DITHER_OFF:
+                dithering = Dithering.NONE;
+                break;
             case RENDER:
                 renderAsciiImage();
                 break;
+            case STATS:
+                printStats();
+                break;
+            case STATS_JSON:
+                writeStats();
+                break;
+            case STATS_ON:
+                PipelineMetrics.setEnabled(true);
+                break;
+            case STATS_OFF:
+                PipelineMetrics.setEnabled(false);
+                break;
             default:
-                handleAddRemoveCommand(userInput);
+                if (userInput.startsWith(COLOR_WITH_LEVELS)) {
+                    setColorLevels(userInput.substring(COLOR_WITH_LEVELS.length()));
+                } else if (userInput.startsWith(WIDTH_WITH_CHARS)) {
+                    setWidth(userInput.substring(WIDTH_WITH_CHARS.length()));
+                } else {
+                    handleAddRemoveCommand(userInput);
+                }
                 break;
         }
 }
 
     /**
      * This function outputs the final output which is an ASCII image when the output will be printed in one
-     * of two options according to the user's choice - either as an HTML file or as printing to the console
+     * of two options according to the user's choice - either as an HTML file or as printing to the console.
+     * Only the content of the image is rendered, at exactly the chosen width, in sub images of the proportions
+     * of the cells of the output.
+     * The pixels of the image are only decoded by the first render that needs them, so a file whose header
+     * is fine but whose pixels are corrupt fails here - the error is printed and the shell goes on.
      */
     private void renderAsciiImage() {
         if(!chars.isEmpty()){
-            BrightnessImgCharMatcher imgCharMatcher = new BrightnessImgCharMatcher(img, FONT);
             Character[] arrayChars = new Character[chars.size()];
-            asciiOutput.output(imgCharMatcher.chooseChars(charsInRow, chars.toArray(arrayChars)));
+            double cellAspectRatio = asciiOutput.cellAspectRatio();
+            try {
+                if (colored && asciiOutput instanceof HtmlAsciiOutput htmlOutput) {
+                    BrightnessImgCharMatcher.ColoredChars coloredChars = getImgCharMatcher()
+                            .chooseColoredChars(charsInRow, cellAspectRatio, chars.toArray(arrayChars));
+                    htmlOutput.output(coloredChars.chars(), coloredChars.colors());
+                } else {
+                    ImgCharMatcher matcher = matchShapes ? getShapeMatcher() : getImgCharMatcher();
+                    asciiOutput.output(matcher.chooseChars(charsInRow, cellAspectRatio,
+                            chars.toArray(arrayChars)));
+                }
+            } catch (UncheckedIOException e) {
+                System.out.println(DECODE_ERROR_MESSAGE + e.getMessage());
+            }
         }else {
             System.out.println(NO_CHARS_ERROR_MESSAGE);
         }
     }
 
+    /**
+     * A char only shows the mean brightness of its sub image, so when a sub image spans many pixels the image
+     * is rendered from a lower resolution of it - one where a sub image still spans at least
+     * MIN_SAMPLES_PER_CHAR pixels in each direction. The lower resolution is decoded from the file with
+     * subsampling, so the decoding time and memory follow the width of the ASCII image rather than that of
+     * the image. A higher resolution is only decoded when a wider render needs it ("res up").
+     * @return the matcher of the resolution that suits the current width, with the current dithering
+     */
+    private BrightnessImgCharMatcher getImgCharMatcher() {
+        int factor = downsamplingFactor();
+        if (imgCharMatcher == null || imgCharMatcherFactor != factor) {
+            imgCharMatcher = new BrightnessImgCharMatcher(img.downsampled(factor), FONT, ForkJoinPool.commonPool(),
+                    cache);
+            imgCharMatcherFactor = factor;
+        }
+        imgCharMatcher.setDithering(dithering);
+        return imgCharMatcher;
+    }
+
+    /**
+     *
+     * @return the shape matcher of the resolution that suits the current width, see getImgCharMatcher
+     */
+    private StructureImgCharMatcher getShapeMatcher() {
+        int factor = downsamplingFactor();
+        if (shapeMatcher == null || shapeMatcherFactor != factor) {
+            shapeMatcher = new StructureImgCharMatcher(img.downsampled(factor), FONT, ForkJoinPool.commonPool(),
+                    cache);
+            shapeMatcherFactor = factor;
+        }
+        return shapeMatcher;
+    }
+
+    /**
+     *
+     * @return the largest power of 2 the image can be downsampled by with the current width and output
+     */
+    private int downsamplingFactor() {
+        double tileWidth = (double) img.getContentBounds().width / charsInRow;
+        double subImageSize = tileWidth * Math.min(1, asciiOutput.cellAspectRatio()); // the shorter side
+        int factor = 1;
+        while (subImageSize / (factor * 2) >= MIN_SAMPLES_PER_CHAR) {
+            factor *= 2;
+        }
+        return factor;
+    }
+
+    /**
+     * Renders in color to the HTML file, with every color channel quantized to the given number of levels
+     * @param levels -> the number of levels, between 2 and 256
+     */
+    private void setColorLevels(String levels) {
+        try {
+            asciiOutput = new HtmlAsciiOutput(OUT_FILE, FONT, Integer.parseInt(levels.trim()));
+            colored = true;
+            System.out.println(COLOR_SET_TO + levels.trim());
+        } catch (IllegalArgumentException e) {
+            System.out.println(BOUNDARIES_ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * Sets the ASCII image resolution to any number of chars in a row
+     * @param width -> the number of chars, between the widths "res down" and "res up" can reach
+     */
+    private void setWidth(String width) {
+        try {
+            int numCharsInRow = Integer.parseInt(width.trim());
+            if (numCharsInRow >= minCharsInRow && numCharsInRow <= maxCharsInRow) {
+                charsInRow = numCharsInRow;
+                System.out.println(WIDTH_SET_TO + charsInRow);
+                return;
+            }
+        } catch (NumberFormatException e) {
+            System.out.printf(FORMAT_ERROR_MESSAGE, CHANGE_WIDTH);
+            return;
+        }
+        System.out.println(BOUNDARIES_ERROR_MESSAGE);
+    }
+
     /**
      * Lowers the ASCII image resolution
      */
@@ -0,0 +1,144 @@
+package ascii_art.animation;
+
+import ascii_art.img_to_char.BrightnessCache;
+import ascii_art.img_to_char.BrightnessImgCharMatcher;
+import ascii_output.AsciiOutput;
+import ascii_output.DeltaFrameReader;
+import image.Image;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.concurrent.*;
+
+/**
+ * Converts the frames of an animation to ASCII frames as a pipeline of three stages:
+ * a decoder thread that reads the frames, a pool of threads that convert them in parallel with
+ * BrightnessImgCharMatcher, and the calling thread that outputs the converted frames in their original order.
+ * At most a given number of frames are decoded but not yet output, so a slow output stage holds back the
+ * decoder instead of filling the memory with frames.
+ */
+public class AnimationPipeline {
+    private static final int MIN_PIXELS_PER_CHAR = 2;
+    private static final long CHARS_CACHE_SIZE = 1 << 12;
+    private static final long NANOS_IN_SECOND = 1_000_000_000L;
+
+    private final String font;
+    private final int charsInRow;
+    private final Character[] charSet;
+    private final int threads;
+    private final int maxFramesInFlight;
+    // every frame is a new image, so there's no point in keeping their brightnesses - only the chars' ones
+    private final BrightnessCache cache = new BrightnessCache(0, 0, CHARS_CACHE_SIZE);
+
+    /**
+     *
+     * @param font -> the font of the chars
+     * @param charsInRow -> number of chars in a row of every frame
+     * @param charSet -> the chars the frames are made of
+     * @param threads -> number of threads that convert frames
+     * @param maxFramesInFlight -> maximal number of frames that were decoded but not output yet
+     */
+    public AnimationPipeline(String font, int charsInRow, Character[] charSet, int threads,
+                             int maxFramesInFlight) {
+        this.font = font;
+        this.charsInRow = charsInRow;
+        this.charSet = charSet;
+        this.threads = threads;
+        this.maxFramesInFlight = maxFramesInFlight;
+    }
+
+    /**
+     * Converts all the frames of an animation and outputs them in order
+     * @param source -> a directory of frames or a multi-frame image file (e.g. an animated GIF)
+     * @param output -> receives the ASCII frames in order
+     * @return the number of frames
+     * @throws IOException in case the frames couldn't be decoded or output
+     * @throws InterruptedException in case the thread was interrupted while waiting for a frame
+     */
+    public int convert(Path source, AsciiOutput output) throws IOException, InterruptedException {
+        ExecutorService converters = Executors.newFixedThreadPool(threads);
+        BlockingQueue<Future<char[][]>> framesInOrder = new ArrayBlockingQueue<>(maxFramesInFlight);
+        Thread decoder = new Thread(() -> decodeAll(source, converters, framesInOrder), "frame-decoder");
+        decoder.start();
+        int numFrames = 0;
+        try {
+            while (true) {
+                char[][] frame = framesInOrder.take().get();
+                if (frame == null) { // no more frames
+                    return numFrames;
+                }
+                output.output(frame);
+                numFrames++;
+            }
+        } catch (UncheckedIOException e) { // the output failed, e.g. a full disk
+            throw new IOException(e.getMessage(), e.getCause());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            decoder.interrupt();
+            converters.shutdownNow();
+        }
+    }
+
+    /**
+     * The decoder stage - decodes the frames, hands each of them to the converters and queues the pending
+     * result, blocking while the queue is full. The end of the frames (or a failure of any kind) is queued
+     * last, so the output stage never waits for a frame that will not come.
+     */
+    private void decodeAll(Path source, ExecutorService converters,
+                           BlockingQueue<Future<char[][]>> framesInOrder) {
+        CompletableFuture<char[][]> last = new CompletableFuture<>();
+        try (FrameDecoder frames = FrameDecoder.open(source)) {
+            BufferedImage frame;
+            while ((frame = frames.next()) != null) {
+                Image img = Image.fromBufferedImage(frame); // copies the pixels, the frame may be reused
+                framesInOrder.put(converters.submit(() -> convertFrame(img)));
+            }
+            last.complete(null);
+        } catch (IOException | RuntimeException e) { // e.g. a broken frame, or the converters were shut down
+            last.completeExceptionally(e);
+        } catch (InterruptedException e) { // the output stage stopped
+            return;
+        }
+        try {
+            framesInOrder.put(last);
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private char[][] convertFrame(Image img) {
+        int frameCharsInRow = Math.max(1, Math.min(charsInRow, img.getWidth() / MIN_PIXELS_PER_CHAR));
+        // frames are converted in parallel with each other, so each one is converted serially
+        return new BrightnessImgCharMatcher(img, font, null, cache).chooseChars(frameCharsInRow, charSet);
+    }
+
+    /**
+     * Plays an animation written by DeltaFrameOutput
+     * @param filename -> the animation file
+     * @param output -> where the frames are shown, e.g. a console output that redraws in place
+     * @param framesPerSecond -> the rate of the frames
+     * @throws IOException in case the file couldn't be read
+     * @throws InterruptedException in case the thread was interrupted while waiting for the next frame
+     */
+    public static void play(String filename, AsciiOutput output, double framesPerSecond)
+            throws IOException, InterruptedException {
+        long frameNanos = (long) (NANOS_IN_SECOND / framesPerSecond);
+        try (DeltaFrameReader reader = new DeltaFrameReader(filename)) {
+            long nextFrameTime = System.nanoTime();
+            char[][] frame;
+            while ((frame = reader.next()) != null) {
+                output.output(frame);
+                nextFrameTime += frameNanos;
+                long wait = nextFrameTime - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package ascii_art.animation;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Decodes the frames of an animation one after the other - either the images of a directory, in the order
+ * of their names, or the frames of a single multi-frame image file such as an animated GIF.
+ * GIF frames that cover only part of the animation are drawn over the previous frames, as a viewer would.
+ */
+public abstract class FrameDecoder implements Closeable {
+    private static final String GIF_STREAM_FORMAT = "javax_imageio_gif_stream_1.0";
+    private static final String GIF_IMAGE_FORMAT = "javax_imageio_gif_image_1.0";
+    private static final String RESTORE_TO_BACKGROUND = "restoreToBackgroundColor";
+
+    /**
+     *
+     * @return the next frame, or null if there are no more frames
+     * @throws IOException in case a frame couldn't be decoded
+     */
+    public abstract BufferedImage next() throws IOException;
+
+    /**
+     * Opens the frames of a directory or of a multi-frame image file
+     * @param source -> a directory of images or an image file
+     * @return a decoder of the frames
+     * @throws IOException in case the source couldn't be opened
+     */
+    public static FrameDecoder open(Path source) throws IOException {
+        if (Files.isDirectory(source)) {
+            return new DirectoryDecoder(source);
+        }
+        return new MultiFrameDecoder(source);
+    }
+
+    /**
+     * Decodes the image files of a directory, skipping files that are not images
+     */
+    private static class DirectoryDecoder extends FrameDecoder {
+        private final Iterator<Path> files;
+
+        DirectoryDecoder(Path directory) throws IOException {
+            try (Stream<Path> list = Files.list(directory)) {
+                List<Path> sorted = list.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+                files = sorted.iterator();
+            }
+        }
+
+        @Override
+        public BufferedImage next() throws IOException {
+            while (files.hasNext()) {
+                BufferedImage frame = ImageIO.read(files.next().toFile());
+                if (frame != null) {
+                    return frame;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Decodes the frames of a single image file through an ImageReader, one frame at a time
+     */
+    private static class MultiFrameDecoder extends FrameDecoder {
+        private final ImageInputStream input;
+        private final ImageReader reader;
+        private final boolean isGif;
+        private BufferedImage canvas;
+        private Rectangle areaToClear;
+        private int index = 0;
+
+        MultiFrameDecoder(Path file) throws IOException {
+            input = ImageIO.createImageInputStream(file.toFile());
+            if (input == null) {
+                throw new IOException("Failed to open " + file);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                input.close();
+                throw new IOException("Unsupported image format: " + file);
+            }
+            reader = readers.next();
+            reader.setInput(input, false, false);
+            isGif = reader.getFormatName().equalsIgnoreCase("gif");
+        }
+
+        @Override
+        public BufferedImage next() throws IOException {
+            BufferedImage frame;
+            try {
+                frame = reader.read(index);
+            } catch (IndexOutOfBoundsException e) { // there are no more frames
+                return null;
+            }
+            if (isGif) {
+                frame = drawOnCanvas(frame, reader.getImageMetadata(index));
+            }
+            index++;
+            return frame;
+        }
+
+        /**
+         * Draws a GIF frame at its position over the previous frames
+         * @return the whole picture the frame is a part of
+         */
+        private BufferedImage drawOnCanvas(BufferedImage frame, IIOMetadata metadata) throws IOException {
+            if (canvas == null) {
+                IIOMetadataNode screen = findNode(reader.getStreamMetadata(), GIF_STREAM_FORMAT,
+                        "LogicalScreenDescriptor");
+                int width = intAttribute(screen, "logicalScreenWidth", frame.getWidth());
+                int height = intAttribute(screen, "logicalScreenHeight", frame.getHeight());
+                canvas = new BufferedImage(Math.max(width, 1), Math.max(height, 1),
+                        BufferedImage.TYPE_INT_ARGB);
+            }
+            Graphics2D g = canvas.createGraphics();
+            if (areaToClear != null) {
+                g.setComposite(AlphaComposite.Clear);
+                g.fill(areaToClear);
+                g.setComposite(AlphaComposite.SrcOver);
+                areaToClear = null;
+            }
+            IIOMetadataNode descriptor = findNode(metadata, GIF_IMAGE_FORMAT, "ImageDescriptor");
+            int left = intAttribute(descriptor, "imageLeftPosition", 0);
+            int top = intAttribute(descriptor, "imageTopPosition", 0);
+            g.drawImage(frame, left, top, null);
+            g.dispose();
+            IIOMetadataNode control = findNode(metadata, GIF_IMAGE_FORMAT, "GraphicControlExtension");
+            if (control != null && RESTORE_TO_BACKGROUND.equals(control.getAttribute("disposalMethod"))) {
+                areaToClear = new Rectangle(left, top, frame.getWidth(), frame.getHeight());
+            }
+            return canvas;
+        }
+
+        private static IIOMetadataNode findNode(IIOMetadata metadata, String format, String name) {
+            if (metadata == null) {
+                return null;
+            }
+            IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(format);
+            for (int i = 0; i < root.getLength(); i++) {
+                if (root.item(i).getNodeName().equals(name)) {
+                    return (IIOMetadataNode) root.item(i);
+                }
+            }
+            return null;
+        }
+
+        private static int intAttribute(IIOMetadataNode node, String name, int defaultValue) {
+            if (node == null || node.getAttribute(name).isEmpty()) {
+                return defaultValue;
+            }
+            return Integer.parseInt(node.getAttribute(name));
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.dispose();
+            input.close();
+        }
+    }
+}
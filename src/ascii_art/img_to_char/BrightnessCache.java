@@ -0,0 +1,185 @@
+package ascii_art.img_to_char;
+
+import image.Image;
+import metrics.PipelineMetrics;
+
+/**
+ * The caches of a brightness matcher: the brightness index of each image, the grid of sub image
+ * brightnesses of each (image, tile grid), the brightness of each (font, char, render size) and the
+ * lookup table of each (font, char set).
+ * A single instance can be shared by matchers of different images working concurrently, e.g. in a service,
+ * since nothing is kept per matcher and all the caches are bounded and thread safe.
+ */
+public class BrightnessCache {
+    private static final long DEFAULT_MAX_INDEX_BYTES = Runtime.getRuntime().maxMemory() / 4;
+    private static final long DEFAULT_MAX_SUB_IMAGES_BYTES = 64L << 20;
+    private static final long DEFAULT_MAX_CHARS = 1 << 16;
+    private static final long DEFAULT_MAX_CHAR_SETS = 256;
+
+    /**
+     * The key of a grid of sub image brightnesses
+     */
+    record SubImagesKey(int imageIdentifier, TileGrid grid) {
+    }
+
+    /**
+     * The key of the brightness of a char, which depends on how it looks in a given font and size
+     */
+    record CharKey(String font, char c, int renderSize) {
+    }
+
+    /**
+     * The key of a lookup table of a char set - the chars are sorted, so the order they were given in
+     * doesn't matter
+     */
+    record CharSetKey(String font, String sortedChars) {
+    }
+
+    private final LruCache<Integer, BrightnessIndex> brightnessIndices;
+    private final LruCache<SubImagesKey, double[][]> subImagesBrightnesses;
+    private final LruCache<SubImagesKey, int[][]> subImagesColors;
+    private final LruCache<CharKey, Double> charsBrightnesses;
+    private final LruCache<CharSetKey, CharLookupTable> charLookupTables;
+    private final DiskBrightnessCache diskCache;
+
+    /**
+     * Creates caches with the default bounds
+     */
+    public BrightnessCache() {
+        this(DEFAULT_MAX_INDEX_BYTES, DEFAULT_MAX_SUB_IMAGES_BYTES, DEFAULT_MAX_CHARS);
+    }
+
+    /**
+     *
+     * @param maxIndexBytes -> bound on the memory of the brightness indices of the images
+     * @param maxSubImagesBytes -> bound on the memory of the saved sub image brightnesses
+     * @param maxChars -> bound on the number of saved char brightnesses
+     */
+    public BrightnessCache(long maxIndexBytes, long maxSubImagesBytes, long maxChars) {
+        this(maxIndexBytes, maxSubImagesBytes, maxChars, null);
+    }
+
+    /**
+     *
+     * @param maxIndexBytes -> bound on the memory of the brightness indices of the images
+     * @param maxSubImagesBytes -> bound on the memory of the saved sub image brightnesses
+     * @param maxChars -> bound on the number of saved char brightnesses
+     * @param diskCache -> where sub image brightnesses are also saved for following runs, null for none
+     */
+    public BrightnessCache(long maxIndexBytes, long maxSubImagesBytes, long maxChars,
+                           DiskBrightnessCache diskCache) {
+        this.diskCache = diskCache;
+        brightnessIndices = new LruCache<>(maxIndexBytes, BrightnessIndex::sizeInBytes);
+        subImagesBrightnesses = new LruCache<>(maxSubImagesBytes, BrightnessCache::sizeInBytes);
+        subImagesColors = new LruCache<>(maxSubImagesBytes, BrightnessCache::sizeInBytes);
+        charsBrightnesses = new LruCache<>(maxChars);
+        charLookupTables = new LruCache<>(DEFAULT_MAX_CHAR_SETS);
+    }
+
+    private static long sizeInBytes(double[][] grid) {
+        return grid.length == 0 ? 0 : (long) grid.length * grid[0].length * Double.BYTES;
+    }
+
+    private static long sizeInBytes(int[][] grid) {
+        return grid.length == 0 ? 0 : (long) grid.length * grid[0].length * Integer.BYTES;
+    }
+
+    /**
+     *
+     * @return the brightness indices, keyed by image identifier
+     */
+    LruCache<Integer, BrightnessIndex> brightnessIndices() {
+        return brightnessIndices;
+    }
+
+    /**
+     * The brightness index of an image is built the first time it's needed, and is then used for every
+     * resolution and by every matcher of the image
+     * @param img -> an image that is not streaming
+     * @return the brightness index of the image
+     */
+    @SuppressWarnings("try")
+    BrightnessIndex brightnessIndexOf(Image img) {
+        return brightnessIndices.computeIfAbsent(img.getImageIdentifier(), imageIdentifier -> {
+            try (PipelineMetrics.Timer timer = PipelineMetrics.start(PipelineMetrics.Stage.INDEX)) {
+                return new BrightnessIndex(img);
+            }
+        });
+    }
+
+    /**
+     *
+     * @return the grids of sub image brightnesses, keyed by image identifier and tile grid
+     */
+    LruCache<SubImagesKey, double[][]> subImagesBrightnesses() {
+        return subImagesBrightnesses;
+    }
+
+    /**
+     *
+     * @return the grids of the mean colors of sub images, keyed by image identifier and tile grid
+     */
+    LruCache<SubImagesKey, int[][]> subImagesColors() {
+        return subImagesColors;
+    }
+
+    /**
+     *
+     * @return the brightnesses of chars before normalization, keyed by font, char and render size
+     */
+    LruCache<CharKey, Double> charsBrightnesses() {
+        return charsBrightnesses;
+    }
+
+    /**
+     *
+     * @return the lookup tables of char sets, keyed by font and the sorted chars of the set
+     */
+    LruCache<CharSetKey, CharLookupTable> charLookupTables() {
+        return charLookupTables;
+    }
+
+    /**
+     *
+     * @return the persistent cache of sub image brightnesses, or null if there is none
+     */
+    DiskBrightnessCache diskCache() {
+        return diskCache;
+    }
+
+    /**
+     *
+     * @return a summary of the hits and misses of every cache
+     */
+    @Override
+    public String toString() {
+        return String.format("brightness indices: %s%nsub images brightnesses: %s%n" +
+                        "sub images colors: %s%nchars brightnesses: %s%nchar lookup tables: %s",
+                describe(brightnessIndices), describe(subImagesBrightnesses), describe(subImagesColors),
+                describe(charsBrightnesses), describe(charLookupTables)) +
+                (diskCache == null ? "" : String.format("%ndisk: %s", diskCache));
+    }
+
+    /**
+     * Registers the hits, misses and evictions of every cache as counters of PipelineMetrics
+     * @param prefix -> the counters are named prefix.cache.counter
+     */
+    public void registerCounters(String prefix) {
+        registerCounters(prefix + ".brightnessIndices", brightnessIndices);
+        registerCounters(prefix + ".subImagesBrightnesses", subImagesBrightnesses);
+        registerCounters(prefix + ".subImagesColors", subImagesColors);
+        registerCounters(prefix + ".charsBrightnesses", charsBrightnesses);
+        registerCounters(prefix + ".charLookupTables", charLookupTables);
+    }
+
+    private static void registerCounters(String name, LruCache<?, ?> cache) {
+        PipelineMetrics.registerCounter(name + ".hits", cache::getHits);
+        PipelineMetrics.registerCounter(name + ".misses", cache::getMisses);
+        PipelineMetrics.registerCounter(name + ".evictions", cache::getEvictions);
+    }
+
+    private static String describe(LruCache<?, ?> cache) {
+        return String.format("%d entries, %d hits, %d misses, %d evictions",
+                cache.size(), cache.getHits(), cache.getMisses(), cache.getEvictions());
+    }
+}
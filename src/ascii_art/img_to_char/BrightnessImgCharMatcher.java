@@ -1,38 +1,58 @@
 package ascii_art.img_to_char;
 
 import image.Image;
-import java.awt.*;
+import metrics.PipelineMetrics;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
 
 /**
  * The role of this class is to match a two-dimensional array of characters that represents an ASCII
  * image to a two-dimensional array of pixels that represents a normal image
  */
-public class BrightnessImgCharMatcher {
-    private static final int NUM_OF_PIXELS_TO_RENDER_CHAR = 16;
-    private static final double MAX_RGB_VALUE = 255;
-    private static final Double RED_PRODUCT = 0.2126;
-    private static final double GREEN_PRODUCT = 0.7152;
-    private static final double BLUE_PRODUCT = 0.0722;
+public class BrightnessImgCharMatcher implements ImgCharMatcher {
+    static final int NUM_OF_PIXELS_TO_RENDER_CHAR = 16;
     private final Image img;
     private final String font;
-    private final static HashMap<Character, Double> savedCharsBrightnesses = new HashMap<>();
-    private final static HashMap<Integer, ArrayList<ArrayList<Double>>> savedSubImagesBrightnesses =
-            new HashMap<>();
-    private static int lastImageIdentifier = 1;
+    private final ForkJoinPool pool;
+    private final BrightnessCache cache;
+    // the last render, which a render of the same width with another char set only patches
+    private volatile RenderState lastRender;
+    private volatile Dithering dithering = Dithering.NONE;
 
     /**
-     *
+     * Creates a matcher that converts the rows of sub images in parallel on the common fork/join pool
      * @param img -> the orig img
      * @param font -> a font of the chars that will be in the ASCII image
      */
     public BrightnessImgCharMatcher(Image img, String font) {
+        this(img, font, ForkJoinPool.commonPool(), new BrightnessCache());
+    }
+
+    /**
+     *
+     * @param img -> the orig img
+     * @param font -> a font of the chars that will be in the ASCII image
+     * @param pool -> the pool that converts bands of sub image rows in parallel, its parallelism decides
+     *             how many threads work on one image. null forces a serial conversion on the calling
+     *             thread (useful for debugging). The result is the same either way.
+     * @param cache -> where brightnesses are saved for the following renders. It may be shared with
+     *              matchers of other images, also ones working concurrently.
+     */
+    public BrightnessImgCharMatcher(Image img, String font, ForkJoinPool pool, BrightnessCache cache) {
         this.img = img;
         this.font = font;
-        if (img.getImageIdentifier() > lastImageIdentifier) {
-            savedSubImagesBrightnesses.clear();
-        }
-        lastImageIdentifier = img.getImageIdentifier();
+        this.pool = pool;
+        this.cache = cache;
+    }
+
+    /**
+     *
+     * @param dithering -> how the brightnesses of the sub images are matched to chars in the following
+     *                  renders, Dithering.NONE (the default) for the char of the closest brightness
+     */
+    public void setDithering(Dithering dithering) {
+        this.dithering = dithering;
     }
 
     /**
@@ -46,52 +66,251 @@ public class BrightnessImgCharMatcher {
                the original image. A suitable printing of this array will produce an ASCII image identical
                to the original image
      */
+    @Override
     public char[][] chooseChars(int numCharsInRow, Character[] charSet) {
+        return chooseChars(TileGrid.squares(img, numCharsInRow), charSet);
+    }
 
-        if (charSet.length > 0){
-            boolean subImagesAlreadyComputed = true;
-            Integer keyToAddOrFind = numCharsInRow; //a key to search in the hash map in order to find out if
-                                           //the current sub images brightnesses already computed in the past
+    /**
+     * Like chooseChars(numCharsInRow, charSet), over the content of the image only (without its padding) and
+     * at any width: the sub images are rectangles that may start and end inside pixels, see TileGrid.fit
+     * @param numCharsInRow -> number of chars in a row of the ASCII image, positive
+     * @param cellAspectRatio -> the height of a cell of the output divided by its width, so the ASCII image
+     *                        keeps the proportions of the image
+     * @param charSet -> The array of characters from which we will build the ASCII image
+     * @return the chars of the ASCII image
+     * @throws IllegalArgumentException if numCharsInRow or cellAspectRatio is not positive
+     */
+    @Override
+    public char[][] chooseChars(int numCharsInRow, double cellAspectRatio, Character[] charSet) {
+        return chooseChars(TileGrid.fit(img, numCharsInRow, cellAspectRatio), charSet);
+    }
 
-            ArrayList<ArrayList<Double>> matchingSubImagesBrightnesses =
-                    savedSubImagesBrightnesses.get(keyToAddOrFind);
-            ArrayList<ArrayList<Double>> newSubImagesBrightnesses = null;
-            if (matchingSubImagesBrightnesses == null) { // if the current sub images brightnesses have not
-                                                                                // computed in the past
-                subImagesAlreadyComputed = false;
-                newSubImagesBrightnesses = new ArrayList<>(); // then we need to save the current ones
+    @SuppressWarnings("try")
+    private char[][] chooseChars(TileGrid grid, Character[] charSet) {
+        try (PipelineMetrics.Timer timer = PipelineMetrics.start(PipelineMetrics.Stage.MATCH)) {
+            return matchChars(grid, charSet);
+        }
+    }
+
+    /**
+     * The chars of an ASCII image with the mean color of the sub image of every char
+     * @param chars -> the chars, as returned by chooseChars
+     * @param colors -> the mean packed RGB value of the sub image of each char
+     */
+    public record ColoredChars(char[][] chars, int[][] colors) {
+    }
+
+    /**
+     * Like chooseChars, and also finds the mean color of every sub image. The colors are measured in the same
+     * pass over the image as the brightnesses, and are saved in the cache like them for the following renders.
+     * @param numCharsInRow -> number of chars in a row of the ASCII image, as in chooseChars
+     * @param charSet -> The array of characters from which we will build the ASCII image
+     * @return the chars and the colors of the ASCII image
+     */
+    public ColoredChars chooseColoredChars(int numCharsInRow, Character[] charSet) {
+        return chooseColoredChars(TileGrid.squares(img, numCharsInRow), charSet);
+    }
+
+    /**
+     * Like chooseColoredChars(numCharsInRow, charSet), with the sub images of
+     * chooseChars(numCharsInRow, cellAspectRatio, charSet)
+     * @return the chars and the colors of the ASCII image
+     */
+    public ColoredChars chooseColoredChars(int numCharsInRow, double cellAspectRatio, Character[] charSet) {
+        return chooseColoredChars(TileGrid.fit(img, numCharsInRow, cellAspectRatio), charSet);
+    }
+
+    @SuppressWarnings("try")
+    private ColoredChars chooseColoredChars(TileGrid grid, Character[] charSet) {
+        try (PipelineMetrics.Timer timer = PipelineMetrics.start(PipelineMetrics.Stage.MATCH)) {
+            if (charSet.length == 0) {
+                return new ColoredChars(new char[0][], new int[0][]);
+            }
+            BrightnessCache.SubImagesKey key = new BrightnessCache.SubImagesKey(img.getImageIdentifier(), grid);
+            int[][] colors = cache.subImagesColors().get(key);
+            if (colors == null) {
+                colors = new int[grid.rows()][grid.cols()];
+                double[][] subImagesBrightnesses;
+                try (PipelineMetrics.Timer indexTimer = PipelineMetrics.start(PipelineMetrics.Stage.INDEX)) {
+                    subImagesBrightnesses = BrightnessIndex.measureSubImages(img, grid, colors);
+                }
+                String contentHash = cache.diskCache() == null ? null : img.getContentHash();
+                saveSubImagesBrightnesses(key, contentHash, grid, subImagesBrightnesses);
+                cache.subImagesColors().put(key, colors);
             }
+            return new ColoredChars(matchChars(grid, charSet), colors);
+        }
+    }
 
-            return getAsciiImage(numCharsInRow, charSet, subImagesAlreadyComputed, keyToAddOrFind,
-                    matchingSubImagesBrightnesses, newSubImagesBrightnesses);
+    /**
+     * The conversion of chooseChars, measured as the match stage
+     */
+    private char[][] matchChars(TileGrid grid, Character[] charSet) {
+        if (charSet.length > 0){
+            //a key to search in the cache in order to find out if the current sub images brightnesses
+            //already computed in the past
+            BrightnessCache.SubImagesKey keyToAddOrFind =
+                    new BrightnessCache.SubImagesKey(img.getImageIdentifier(), grid);
+            double[][] matchingSubImagesBrightnesses = cache.subImagesBrightnesses().get(keyToAddOrFind);
+            return getAsciiImage(grid, charSet, keyToAddOrFind, matchingSubImagesBrightnesses);
         }
         return new char[0][];
     }
 
+    /**
+     * Computes the brightnesses of a range of chars in advance, so that their glyphs are rendered and
+     * can be saved with the glyph cache of CharRenderer
+     * @param begin -> the first char of the range
+     * @param end -> the last char of the range
+     */
+    public void prepareChars(char begin, char end) {
+        for (char c = begin; c <= end; c++) {
+            cache.charsBrightnesses().computeIfAbsent(new BrightnessCache.CharKey(font, c,
+                    NUM_OF_PIXELS_TO_RENDER_CHAR), key -> calculateCharBrightness(key.c(), key.font()));
+        }
+    }
+
     /**
      * A private function that calculates the brightness values of the sub-images and characters,
      * performs a correlation and returns a two-dimensional array of characters that matches the brightness
      * of the sub-images in the original image
      */
-    private char[][] getAsciiImage(int numCharsInRow, Character[] charSet,
-                                   boolean subImagesAlreadyComputed, Integer keyToAddOrFind,
-                                   ArrayList<ArrayList<Double>> matchingSubImagesBrightnesses,
-                                   ArrayList<ArrayList<Double>> newSubImagesBrightnesses) {
+    @SuppressWarnings("try")
+    private char[][] getAsciiImage(TileGrid grid, Character[] charSet,
+                                   BrightnessCache.SubImagesKey keyToAddOrFind,
+                                   double[][] matchingSubImagesBrightnesses) {
+
+        int numCharsInCol = grid.rows();
+        int numCharsInRow = grid.cols();
+        CharLookupTable charsBrightnesses = getCharLookupTable(charSet);
+        if (dithering != Dithering.NONE) {
+            return dithering.match(getSubImagesBrightnesses(grid, keyToAddOrFind, matchingSubImagesBrightnesses),
+                    charsBrightnesses, pool);
+        }
+        RenderState last = lastRender;
+        if (last != null && last.grid.equals(grid)) {
+            return rerender(last, charsBrightnesses); // only the char set changed since the last render
+        }
+        if (matchingSubImagesBrightnesses != null) { // then build the ascii image from brightnesses that
+                                                                             // already computed in the past
+            return remember(grid, charsBrightnesses, matchingSubImagesBrightnesses,
+                    buildFromSavedSubImages(numCharsInCol, numCharsInRow,
+                            charsBrightnesses, matchingSubImagesBrightnesses), null);
+        }
+        DiskBrightnessCache diskCache = cache.diskCache();
+        String contentHash = diskCache == null ? null : img.getContentHash();
+        DiskBrightnessCache.MappedGrid mappedGrid = loadMappedGrid(contentHash, grid);
+        if (mappedGrid != null) {
+            return buildFromMappedGrid(numCharsInCol, numCharsInRow, charsBrightnesses, mappedGrid);
+        }
+
+        if (img.isStreaming()) { // too large to index, so the sub images are measured in a single pass
+            double[][] newSubImagesBrightnesses;
+            try (PipelineMetrics.Timer timer = PipelineMetrics.start(PipelineMetrics.Stage.INDEX)) {
+                newSubImagesBrightnesses = BrightnessIndex.measureSubImages(img, grid, null);
+            }
+            saveSubImagesBrightnesses(keyToAddOrFind, contentHash, grid, newSubImagesBrightnesses);
+            return remember(grid, charsBrightnesses, newSubImagesBrightnesses,
+                    buildFromSavedSubImages(numCharsInCol, numCharsInRow, charsBrightnesses,
+                            newSubImagesBrightnesses), null);
+        }
+        return buildFromNewSubImages(grid, getBrightnessIndex(), charsBrightnesses, keyToAddOrFind, contentHash);
+    }
+
+    /**
+     * Finds the brightnesses of all the sub images before any of them is matched, for dithering - from the
+     * cache, the last render, the disk or the image, in that order
+     * @param savedSubImagesBrightnesses -> the brightnesses found in the cache, or null
+     * @return the brightness of every sub image
+     */
+    @SuppressWarnings("try")
+    private double[][] getSubImagesBrightnesses(TileGrid grid, BrightnessCache.SubImagesKey key,
+                                                double[][] savedSubImagesBrightnesses) {
+        if (savedSubImagesBrightnesses != null) {
+            return savedSubImagesBrightnesses;
+        }
+        RenderState last = lastRender;
+        if (last != null && last.grid.equals(grid)) {
+            return last.subImagesBrightnesses;
+        }
+        int numCharsInCol = grid.rows();
+        int numCharsInRow = grid.cols();
+        DiskBrightnessCache diskCache = cache.diskCache();
+        String contentHash = diskCache == null ? null : img.getContentHash();
+        DiskBrightnessCache.MappedGrid mappedGrid = loadMappedGrid(contentHash, grid);
+        if (mappedGrid != null) {
+            double[][] subImagesBrightnesses = new double[numCharsInCol][numCharsInRow];
+            for (int i = 0; i < numCharsInCol; i++) {
+                for (int j = 0; j < numCharsInRow; j++) {
+                    subImagesBrightnesses[i][j] = mappedGrid.get(i, j);
+                }
+            }
+            return subImagesBrightnesses;
+        }
+        double[][] subImagesBrightnesses;
+        if (img.isStreaming()) {
+            try (PipelineMetrics.Timer timer = PipelineMetrics.start(PipelineMetrics.Stage.INDEX)) {
+                subImagesBrightnesses = BrightnessIndex.measureSubImages(img, grid, null);
+            }
+        } else {
+            BrightnessIndex brightnessIndex = getBrightnessIndex();
+            double[][] newSubImagesBrightnesses = new double[numCharsInCol][numCharsInRow];
+            forEachRow(numCharsInCol, numCharsInRow, i -> {
+                for (int j = 0; j < numCharsInRow; j++) {
+                    newSubImagesBrightnesses[i][j] = brightnessIndex.meanBrightness(grid, i, j);
+                }
+            });
+            subImagesBrightnesses = newSubImagesBrightnesses;
+        }
+        saveSubImagesBrightnesses(key, contentHash, grid, subImagesBrightnesses);
+        return subImagesBrightnesses;
+    }
+
+    /**
+     * Whether chooseChars(numCharsInRow, charSet) finds the brightnesses of the sub images on disk, in which
+     * case it never reads the pixels of the image
+     * @param numCharsInRow -> number of chars in a row of the ascii image
+     * @return true if an earlier run saved the sub images brightnesses of the image at that width on disk
+     */
+    public boolean isSavedOnDisk(int numCharsInRow) {
+        String contentHash = cache.diskCache() == null ? null : img.getContentHash();
+        return loadMappedGrid(contentHash, TileGrid.squares(img, numCharsInRow)) != null;
+    }
+
+    /**
+     * Only grids of squares are saved on disk, keyed by the size of the squares
+     * @param contentHash -> the content hash of the image, or null if it has none or there is no disk cache
+     * @return the brightnesses of the grid that an earlier run saved on disk, or null
+     */
+    private DiskBrightnessCache.MappedGrid loadMappedGrid(String contentHash, TileGrid grid) {
+        if (contentHash == null || grid.squareSize() == 0) {
+            return null;
+        }
+        DiskBrightnessCache.MappedGrid mappedGrid = cache.diskCache().load(contentHash, grid.squareSize());
+        return mappedGrid != null && mappedGrid.rows == grid.rows() && mappedGrid.cols == grid.cols() ?
+                mappedGrid : null;
+    }
 
-        int imgHeight = img.getHeight();
-        int imgWidth = img.getWidth();
-        int subImageSize = imgWidth / numCharsInRow;
-        int numCharsInCol = imgHeight / subImageSize;
-        TreeMap<Double, Character> charsBrightnesses = calculateAllCharsBrightnesses(charSet);
-        Color[][][] subImages = img.convertToSubImages(subImageSize, imgHeight, imgWidth,img.getPixelArray());
-        if (subImagesAlreadyComputed) { // then build the ascii image from brightnesses that already computed
-                                                                                               // in the past
-            return buildFromSavedSubImages(numCharsInCol, numCharsInRow,
-                    charsBrightnesses, matchingSubImagesBrightnesses);
+    /**
+     * Saves new sub images brightnesses in the cache, and on disk if the image has a content hash, the
+     * cache has a disk cache and the grid is a grid of squares
+     */
+    private void saveSubImagesBrightnesses(BrightnessCache.SubImagesKey key, String contentHash,
+                                           TileGrid grid, double[][] subImagesBrightnesses) {
+        cache.subImagesBrightnesses().put(key, subImagesBrightnesses);
+        if (contentHash != null && grid.squareSize() > 0) {
+            cache.diskCache().store(contentHash, grid.squareSize(), subImagesBrightnesses);
         }
+    }
 
-        return buildFromNewSubImages(numCharsInCol, numCharsInRow, subImages, newSubImagesBrightnesses,
-                subImageSize, charsBrightnesses, keyToAddOrFind);
+    /**
+     * The brightness index of an image is built once, the first time sub images brightnesses of that image
+     * are needed, and is then used for every resolution
+     * @return the brightness index of the image
+     */
+    private BrightnessIndex getBrightnessIndex() {
+        return cache.brightnessIndexOf(img);
     }
 
     /**
@@ -99,90 +318,253 @@ public class BrightnessImgCharMatcher {
      *  previously calculated sub images
      */
     private char[][] buildFromSavedSubImages(int numCharsInCol, int numCharsInRow,
-                                     TreeMap<Double, Character> charsBrightnesses,
-                                     ArrayList<ArrayList<Double>> matchingSubImagesBrightnesses) {
-        double currImageBrightness;
-        Map.Entry<Double, Character> closestFromAbove;
-        Map.Entry<Double, Character> closestFromBottom;
+                                     CharLookupTable charsBrightnesses,
+                                     double[][] matchingSubImagesBrightnesses) {
         char[][] asciiImage = new char[numCharsInCol][numCharsInRow];
-        for (int i = 0; i < numCharsInCol; i++) {
+        forEachRow(numCharsInCol, numCharsInRow, i -> {
+            double[] savedRow = matchingSubImagesBrightnesses[i];
             for (int j = 0; j < numCharsInRow; j++) {
-                currImageBrightness = matchingSubImagesBrightnesses.get(i).get(j); // get the saved value
-                closestFromAbove = charsBrightnesses.ceilingEntry(currImageBrightness);
-                closestFromBottom = charsBrightnesses.floorEntry(currImageBrightness);
-                if (Math.abs(currImageBrightness - closestFromAbove.getKey()) <=
-                        Math.abs(currImageBrightness - closestFromBottom.getKey())) {
-                    asciiImage[i][j] = closestFromAbove.getValue();
-                } else {
-                    asciiImage[i][j] = closestFromBottom.getValue();
-                }
+                asciiImage[i][j] = charsBrightnesses.closestChar(savedRow[j]); // the saved value
             }
-        }
+        });
+        return asciiImage;
+    }
+
+    /**
+     * Builds the array of characters from brightnesses that an earlier run saved on disk, reading them
+     * straight from the mapped file - the image itself is not read at all
+     */
+    private char[][] buildFromMappedGrid(int numCharsInCol, int numCharsInRow,
+                                         CharLookupTable charsBrightnesses,
+                                         DiskBrightnessCache.MappedGrid mappedGrid) {
+        char[][] asciiImage = new char[numCharsInCol][numCharsInRow];
+        forEachRow(numCharsInCol, numCharsInRow, i -> {
+            for (int j = 0; j < numCharsInRow; j++) {
+                asciiImage[i][j] = charsBrightnesses.closestChar(mappedGrid.get(i, j));
+            }
+        });
         return asciiImage;
     }
 
     /**
      * A private function that builds the array of characters that will be returned (which represents the
      * ASCII image) by a new calculation of brightnesses of sub-images (since they were not calculated
-     * before)  and also saves the newly calculated brightnesses in the hash table.
-     */
-    private char[][] buildFromNewSubImages(int numCharsInCol, int numCharsInRow, Color[][][] subImages,
-                                   ArrayList<ArrayList<Double>> newSubImagesBrightnesses, int subImageSize,
-                                   TreeMap<Double, Character> charsBrightnesses, Integer keyToAddOrFind) {
-        double currImageBrightness;
-        Map.Entry<Double, Character> closestFromAbove;
-        Map.Entry<Double, Character> closestFromBottom;
+     * before)  and also saves the newly calculated brightnesses.
+     * The brightness of each sub-image is four lookups in the brightness index of the image.
+     */
+    private char[][] buildFromNewSubImages(TileGrid grid, BrightnessIndex brightnessIndex,
+                                   CharLookupTable charsBrightnesses,
+                                   BrightnessCache.SubImagesKey keyToAddOrFind, String contentHash) {
+        int numCharsInCol = grid.rows();
+        int numCharsInRow = grid.cols();
         char[][] asciiImage = new char[numCharsInCol][numCharsInRow];
-        for (int i = 0; i < numCharsInCol; i++) {
-            ArrayList<Double> innerList = new ArrayList<>();
-            newSubImagesBrightnesses.add(innerList);
+        double[][] newSubImagesBrightnesses = new double[numCharsInCol][numCharsInRow];
+        forEachRow(numCharsInCol, numCharsInRow, i -> {
             for (int j = 0; j < numCharsInRow; j++) {
-                currImageBrightness = calculateSubImageBrightness(subImages[i][j], subImageSize);
-                newSubImagesBrightnesses.get(i).add(currImageBrightness); // save the subImage's brightness
-                closestFromAbove = charsBrightnesses.ceilingEntry(currImageBrightness);
-                closestFromBottom = charsBrightnesses.floorEntry(currImageBrightness);
-                if(closestFromAbove != null && closestFromBottom != null) { //means there are at least 2 chars
-                    if (Math.abs(currImageBrightness - closestFromAbove.getKey()) <=
-                            Math.abs(currImageBrightness - closestFromBottom.getKey())) {
-                        asciiImage[i][j] = closestFromAbove.getValue();
-                    } else {
-                        asciiImage[i][j] = closestFromBottom.getValue();
-                    }
-                }else { // in this case it means there aren't 2 different values of char brightnesses
-                    asciiImage[i][j] = charsBrightnesses.firstEntry().getValue();
+                double currImageBrightness = brightnessIndex.meanBrightness(grid, i, j);
+                newSubImagesBrightnesses[i][j] = currImageBrightness; // save the subImage's brightness
+                asciiImage[i][j] = charsBrightnesses.closestChar(currImageBrightness);
+            }
+        });
+        saveSubImagesBrightnesses(keyToAddOrFind, contentHash, grid, newSubImagesBrightnesses);
+        return remember(grid, charsBrightnesses, newSubImagesBrightnesses, asciiImage, null);
+    }
+
+    /**
+     * Saves a render as the last one, so a following render of the same width only patches it
+     * @param tileOrder -> the order of the sub images of the brightnesses if it was already made, or null
+     * @return the ascii image
+     */
+    private char[][] remember(TileGrid grid, CharLookupTable charsBrightnesses, double[][] subImagesBrightnesses,
+                              char[][] asciiImage, TileOrder tileOrder) {
+        lastRender = new RenderState(grid, charsBrightnesses, subImagesBrightnesses, asciiImage,
+                tileOrder != null ? tileOrder : new TileOrder(subImagesBrightnesses));
+        return asciiImage;
+    }
+
+    /**
+     * Renders the sub images of the last render with another char set. When both char sets are normalized
+     * with the same bounds, the chars they share keep their brightnesses, so only the sub images that were
+     * matched to a removed char, or that are matched to an added one, can change - and those are found by a
+     * binary search in the sub images sorted by brightness. Otherwise (the darkest or brightest char changed)
+     * every sub image is matched again, but the brightnesses of the sub images are not computed again.
+     * The arrays returned by earlier renders are never modified.
+     */
+    private char[][] rerender(RenderState last, CharLookupTable charsBrightnesses) {
+        char[][] asciiImage;
+        if (charsBrightnesses.sameNormalization(last.charsBrightnesses)) {
+            asciiImage = new char[last.asciiImage.length][];
+            for (int i = 0; i < asciiImage.length; i++) {
+                asciiImage[i] = last.asciiImage[i].clone();
+            }
+            if (charsBrightnesses != last.charsBrightnesses) {
+                rematchChangedSubImages(last, charsBrightnesses, asciiImage);
+            }
+        } else {
+            asciiImage = buildFromSavedSubImages(last.grid.rows(), last.grid.cols(), charsBrightnesses,
+                    last.subImagesBrightnesses);
+        }
+        return remember(last.grid, charsBrightnesses, last.subImagesBrightnesses, asciiImage, last.tileOrder);
+    }
+
+    /**
+     * Walks the distinct brightnesses of the old and the new char sets together, and matches again the sub
+     * images whose char may differ: those that the old set matched to a brightness the new set doesn't have,
+     * and those that the new set matches to a brightness that is new or whose chars changed
+     */
+    private void rematchChangedSubImages(RenderState last, CharLookupTable charsBrightnesses,
+                                         char[][] asciiImage) {
+        CharLookupTable oldBrightnesses = last.charsBrightnesses;
+        TileOrder tileOrder = last.tileOrder;
+        int oldIndex = 0;
+        int newIndex = 0;
+        while (oldIndex < oldBrightnesses.size() || newIndex < charsBrightnesses.size()) {
+            double oldBrightness = oldIndex < oldBrightnesses.size() ?
+                    oldBrightnesses.brightnessAt(oldIndex) : Double.POSITIVE_INFINITY;
+            double newBrightness = newIndex < charsBrightnesses.size() ?
+                    charsBrightnesses.brightnessAt(newIndex) : Double.POSITIVE_INFINITY;
+            if (oldBrightness < newBrightness) { // removed
+                tileOrder.rematch(oldBrightnesses, oldIndex++, charsBrightnesses, asciiImage);
+            } else if (newBrightness < oldBrightness) { // added
+                tileOrder.rematch(charsBrightnesses, newIndex++, charsBrightnesses, asciiImage);
+            } else {
+                if (!oldBrightnesses.sameCharAt(oldIndex, charsBrightnesses, newIndex)) {
+                    tileOrder.rematch(charsBrightnesses, newIndex, charsBrightnesses, asciiImage);
                 }
+                oldIndex++;
+                newIndex++;
             }
         }
-        savedSubImagesBrightnesses.put(keyToAddOrFind, newSubImagesBrightnesses);
-        return asciiImage;
+    }
+
+    /**
+     * A render: the grid and the sub images brightnesses it was made from, the char set and the chars it chose
+     */
+    private record RenderState(TileGrid grid, CharLookupTable charsBrightnesses,
+                               double[][] subImagesBrightnesses, char[][] asciiImage, TileOrder tileOrder) {
+    }
+
+    /**
+     * The sub images of a grid of brightnesses sorted by brightness. Since the closest char only grows with
+     * the brightness, the sub images a lookup table matches to the chars of one brightness are a contiguous
+     * range of this order. The order is only made the first time it's needed, and then serves every char set.
+     */
+    private static class TileOrder {
+        private final double[][] subImagesBrightnesses;
+        private int[] tiles; // row * number of columns + column, by brightness
+        private double[] brightnesses;
+
+        TileOrder(double[][] subImagesBrightnesses) {
+            this.subImagesBrightnesses = subImagesBrightnesses;
+        }
+
+        /**
+         * Sorts the sub images by the float value of their brightness packed with their index, in a primitive
+         * sort, and then puts the few ones with the same float value in the order of their exact brightness
+         */
+        private synchronized void sort() {
+            if (tiles != null) {
+                return;
+            }
+            int numCols = subImagesBrightnesses.length == 0 ? 0 : subImagesBrightnesses[0].length;
+            long[] keys = new long[subImagesBrightnesses.length * numCols];
+            for (int i = 0; i < subImagesBrightnesses.length; i++) {
+                for (int j = 0; j < numCols; j++) {
+                    int tile = i * numCols + j;
+                    keys[tile] = ((long) Float.floatToIntBits((float) subImagesBrightnesses[i][j]) << 32) | tile;
+                }
+            }
+            Arrays.sort(keys);
+            int[] sortedTiles = new int[keys.length];
+            double[] sortedBrightnesses = new double[keys.length];
+            for (int p = 0; p < keys.length; p++) {
+                int tile = (int) keys[p];
+                double brightness = subImagesBrightnesses[tile / numCols][tile % numCols];
+                int q = p;
+                for (; q > 0 && sortedBrightnesses[q - 1] > brightness; q--) { // only within equal floats
+                    sortedTiles[q] = sortedTiles[q - 1];
+                    sortedBrightnesses[q] = sortedBrightnesses[q - 1];
+                }
+                sortedTiles[q] = tile;
+                sortedBrightnesses[q] = brightness;
+            }
+            brightnesses = sortedBrightnesses;
+            tiles = sortedTiles;
+        }
+
+        /**
+         * Matches again the sub images that a lookup table matches to the chars of the given index
+         * @param rangeTable -> the table that decides the range of sub images
+         * @param index -> an index of rangeTable
+         * @param charsBrightnesses -> the table to match the sub images with
+         * @param asciiImage -> receives the chars
+         */
+        void rematch(CharLookupTable rangeTable, int index, CharLookupTable charsBrightnesses,
+                     char[][] asciiImage) {
+            sort();
+            if (tiles.length == 0) {
+                return;
+            }
+            int numCols = subImagesBrightnesses[0].length;
+            int to = firstMatchedAtLeast(rangeTable, index + 1);
+            for (int p = firstMatchedAtLeast(rangeTable, index); p < to; p++) {
+                int i = tiles[p] / numCols;
+                int j = tiles[p] % numCols;
+                asciiImage[i][j] = charsBrightnesses.closestChar(brightnesses[p]);
+            }
+        }
+
+        /**
+         *
+         * @return the first position in the order whose sub image is matched to an index of at least the given
+         * one
+         */
+        private int firstMatchedAtLeast(CharLookupTable table, int index) {
+            int low = 0;
+            int high = tiles.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (table.closestIndex(brightnesses[middle]) < index) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * Runs the given action on every row of sub images, in parallel bands when the matcher has a pool
+     */
+    private void forEachRow(int numRows, int numCols, IntConsumer rowAction) {
+        RowBands.forEachRow(pool, numRows, numCols, rowAction);
+    }
+
+    /**
+     * The lookup table of a char set is built once and saved in the cache for the following renders
+     * @return the lookup table that matches brightnesses to the chars of the given set
+     */
+    private CharLookupTable getCharLookupTable(Character[] charSet) {
+        StringBuilder sortedChars = new StringBuilder(charSet.length);
+        Arrays.stream(charSet).sorted().forEach(sortedChars::append);
+        return cache.charLookupTables().computeIfAbsent(
+                new BrightnessCache.CharSetKey(font, sortedChars.toString()),
+                key -> new CharLookupTable(charSet, calculateAllCharsBrightnesses(charSet)));
     }
 
     /**
      * A private function that calculates the brightness of the characters if these characters have not
      * been calculated before
+     * @return the brightness of each char, in the order of the char set (the lookup table normalizes them)
      */
-    private TreeMap<Double, Character> calculateAllCharsBrightnesses(Character[] charSet) {
+    private double[] calculateAllCharsBrightnesses(Character[] charSet) {
         int charSetLength = charSet.length;
-        ArrayList<Double> tmpCharsBrightnesses = new ArrayList<>();
-        for (int i = 0; i < charSetLength; i++) {
-            Double charBrightnessAlreadyComputed = savedCharsBrightnesses.get(charSet[i]);
-            if (charBrightnessAlreadyComputed != null) { // means the char already computed in the past
-                tmpCharsBrightnesses.add(charBrightnessAlreadyComputed);
-            } else { // compute the brightness of the char then save it in the hash map
-                tmpCharsBrightnesses.add(calculateCharBrightness(charSet[i], font));
-                savedCharsBrightnesses.put(charSet[i], tmpCharsBrightnesses.get(i));
-            }
-        }
-        double maxBrightness = Collections.max(tmpCharsBrightnesses);
-        double minBrightness = Collections.min(tmpCharsBrightnesses);
-        TreeMap<Double, Character> charsBrightnesses = new TreeMap<>();
-        for (int i = 0; i < charSetLength; i++) { // normalize the brightnesses
-            if(maxBrightness - minBrightness != 0) {
-                charsBrightnesses.put((tmpCharsBrightnesses.get(i) - minBrightness) /
-                        (maxBrightness - minBrightness), charSet[i]);
-            }else {
-                charsBrightnesses.put(tmpCharsBrightnesses.get(i), charSet[i]);
-            }
+        double[] charsBrightnesses = new double[charSetLength];
+        for (int i = 0; i < charSetLength; i++) { // computed only if the char was not computed in the past
+            charsBrightnesses[i] = cache.charsBrightnesses().computeIfAbsent(
+                    new BrightnessCache.CharKey(font, charSet[i], NUM_OF_PIXELS_TO_RENDER_CHAR),
+                    key -> calculateCharBrightness(key.c(), key.font()));
         }
         return charsBrightnesses;
     }
@@ -193,7 +575,7 @@ public class BrightnessImgCharMatcher {
      * @param fontName -> specific font for the char
      * @return the computed brightness of the char
      */
-    private double calculateCharBrightness(char c, String fontName) {
+    static double calculateCharBrightness(char c, String fontName) {
         boolean[][] charImage = CharRenderer.getImg(c, NUM_OF_PIXELS_TO_RENDER_CHAR, fontName);
         double sumWhitePixels = 0;
         for (int i = 0; i < NUM_OF_PIXELS_TO_RENDER_CHAR; i++) {
@@ -205,22 +587,4 @@ public class BrightnessImgCharMatcher {
         }
         return sumWhitePixels / (NUM_OF_PIXELS_TO_RENDER_CHAR * NUM_OF_PIXELS_TO_RENDER_CHAR);
     }
-
-    /**
-     *
-     * @param subImage -> sub image to compute its brightness by computing brightness for each pixel
-     * @param num_of_pixels -> the number of pixels in the subImage
-     * @return the computed brightness of the subImage
-     */
-    private double calculateSubImageBrightness(Color[] subImage, int num_of_pixels) {
-        double sumGreyPixels = 0;
-        for (int i = 0; i < num_of_pixels * num_of_pixels; i++) {
-            sumGreyPixels += subImage[i].getRed() * RED_PRODUCT + subImage[i].getGreen() *
-                    GREEN_PRODUCT + subImage[i].getBlue() * BLUE_PRODUCT;
-        }
-        sumGreyPixels /= (num_of_pixels * num_of_pixels);
-        return sumGreyPixels / MAX_RGB_VALUE;
-    }
-
-
 }
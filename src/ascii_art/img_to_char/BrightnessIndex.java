@@ -0,0 +1,392 @@
+package ascii_art.img_to_char;
+
+import image.Image;
+import java.awt.*;
+
+/**
+ * A summed-area table of the luminance of an image. The table is built once per image and afterwards
+ * the mean brightness of any rectangle of the image, at any size, is found with four lookups.
+ * Luminance is computed by the kernel of the run (see LuminanceKernel). The sums are doubles, which are exact in
+ * fixed point - the luminances are integers and no sum reaches 2^53.
+ * Rectangles that start or end inside pixels (the tiles of a TileGrid) are area weighted: the sum over the
+ * pixels as boxes grows linearly inside a pixel in each direction, so it is a bilinear interpolation of the
+ * four corners of the table around the corner of the rectangle, and still four lookups per corner at most.
+ */
+class BrightnessIndex {
+    private static final LuminanceKernel KERNEL = LuminanceKernel.get();
+
+    private final int imageIdentifier;
+    private final int contentLeft;
+    private final int contentTop;
+    private final int contentWidth;
+    private final int contentHeight;
+    private final double fillLuminance;
+    private final double[] summedArea;
+
+    /**
+     * Builds the table in a single streaming pass over the content of the image, row after row, reading
+     * the pixels straight from the image without copying them
+     * @param img -> the image to index
+     */
+    BrightnessIndex(Image img) {
+        Rectangle content = img.getContentBounds();
+        imageIdentifier = img.getImageIdentifier();
+        contentLeft = content.x;
+        contentTop = content.y;
+        contentWidth = content.width;
+        contentHeight = content.height;
+        fillLuminance = KERNEL.luminance(img.getFillRgb());
+        summedArea = new double[(contentWidth + 1) * (contentHeight + 1)];
+        double[] rowLuminances = new double[contentWidth];
+        img.visitContentRows((row, rgb, offset) -> accumulateRow(row, rgb, offset, rowLuminances));
+    }
+
+    /**
+     * Adds a row of the image to the table, the row above it being already accumulated
+     * @param row -> the index of the row in the content
+     * @param rgb -> the packed RGB values of the row
+     * @param offset -> the index in rgb of the first pixel of the row
+     * @param rowLuminances -> a buffer for the luminances of the row, which are converted all at once
+     */
+    private void accumulateRow(int row, int[] rgb, int offset, double[] rowLuminances) {
+        KERNEL.luminanceRow(rgb, offset, contentWidth, rowLuminances);
+        int stride = contentWidth + 1;
+        int above = row * stride + 1;
+        int current = above + stride;
+        double rowSum = 0;
+        for (int j = 0; j < contentWidth; j++) {
+            rowSum += rowLuminances[j];
+            summedArea[current + j] = summedArea[above + j] + rowSum;
+        }
+    }
+
+    /**
+     *
+     * @return the identifier of the indexed image
+     */
+    int getImageIdentifier() {
+        return imageIdentifier;
+    }
+
+    /**
+     *
+     * @return the memory taken by the table
+     */
+    long sizeInBytes() {
+        return (long) summedArea.length * Double.BYTES;
+    }
+
+    /**
+     * Computes the mean brightness of a rectangle of the image. Pixels of the rectangle that fall in the
+     * padding are counted with the fill color without being read.
+     * @param top -> the first row of the rectangle
+     * @param left -> the first column of the rectangle
+     * @param height -> the number of rows in the rectangle
+     * @param width -> the number of columns in the rectangle
+     * @return the mean brightness, between 0 and 1
+     */
+    double meanBrightness(int top, int left, int height, int width) {
+        int fromRow = Math.max(top - contentTop, 0);
+        int toRow = Math.min(top + height - contentTop, contentHeight);
+        int fromCol = Math.max(left - contentLeft, 0);
+        int toCol = Math.min(left + width - contentLeft, contentWidth);
+        long area = (long) height * width;
+        double contentSum = 0;
+        long contentArea = 0;
+        if (fromRow < toRow && fromCol < toCol) {
+            contentSum = sum(fromRow, fromCol, toRow, toCol);
+            contentArea = (long) (toRow - fromRow) * (toCol - fromCol);
+        }
+        double total = contentSum + (area - contentArea) * fillLuminance;
+        return total / (area * KERNEL.maxLuminance());
+    }
+
+    /**
+     *
+     * @param grid -> the tiles to measure
+     * @param row -> the row of the tile
+     * @param col -> the column of the tile
+     * @return the mean brightness of the tile, between 0 and 1 - exactly the one of meanBrightness with whole
+     * pixels when the grid is a grid of squares
+     */
+    double meanBrightness(TileGrid grid, int row, int col) {
+        int subImageSize = grid.squareSize();
+        if (subImageSize > 0) {
+            return meanBrightness(row * subImageSize, col * subImageSize, subImageSize, subImageSize);
+        }
+        return meanBrightness(grid.tileTop(row), grid.tileLeft(col), grid.tileHeight(), grid.tileWidth());
+    }
+
+    /**
+     * Like meanBrightness with whole pixels, for a rectangle whose bounds may fall inside pixels - the pixels it
+     * covers in part are weighted by the covered fraction of their area
+     * @return the mean brightness, between 0 and 1
+     */
+    double meanBrightness(double top, double left, double height, double width) {
+        double fromRow = clamp(top - contentTop, contentHeight);
+        double toRow = clamp(top + height - contentTop, contentHeight);
+        double fromCol = clamp(left - contentLeft, contentWidth);
+        double toCol = clamp(left + width - contentLeft, contentWidth);
+        double area = height * width;
+        double contentSum = 0;
+        double contentArea = 0;
+        if (fromRow < toRow && fromCol < toCol) {
+            contentSum = integral(toRow, toCol) - integral(fromRow, toCol) - integral(toRow, fromCol) +
+                    integral(fromRow, fromCol);
+            contentArea = (toRow - fromRow) * (toCol - fromCol);
+        }
+        double total = contentSum + (area - contentArea) * fillLuminance;
+        return total / (area * KERNEL.maxLuminance());
+    }
+
+    private static double clamp(double value, int max) {
+        return Math.max(0, Math.min(value, max));
+    }
+
+    /**
+     * The sum of the luminance of the content above and left of a point, the pixels being boxes - a bilinear
+     * interpolation of the table between the corners of the pixel the point is in
+     * @param row -> a row of the content, between 0 and its height
+     * @param col -> a column of the content, between 0 and its width
+     */
+    private double integral(double row, double col) {
+        int i = Math.min((int) row, contentHeight - 1);
+        int j = Math.min((int) col, contentWidth - 1);
+        double rowFraction = row - i;
+        double colFraction = col - j;
+        int stride = contentWidth + 1;
+        double topLeft = summedArea[i * stride + j];
+        double topRight = summedArea[i * stride + j + 1];
+        double bottomLeft = summedArea[(i + 1) * stride + j];
+        double bottomRight = summedArea[(i + 1) * stride + j + 1];
+        return topLeft + rowFraction * (bottomLeft - topLeft) + colFraction * (topRight - topLeft) +
+                rowFraction * colFraction * (bottomRight - bottomLeft - topRight + topLeft);
+    }
+
+    /**
+     * Measures the tiles of a grid in one pass over the rows of the image, without building a table, like
+     * measureSubImages with a size. A grid of squares is measured by it, and any other grid is resampled
+     * with area weights: every row of the image adds to the tile rows it overlaps, weighted by the overlap,
+     * its sums over the tile columns, which are differences of a running sum of the row interpolated at the
+     * tile bounds - so the pass stays linear in the number of pixels.
+     * @param img -> the image to measure
+     * @param grid -> the tiles to measure
+     * @param meanRgb -> receives the mean packed RGB value of each tile, or null for brightnesses only
+     * @return the mean brightness of each tile, between 0 and 1
+     */
+    static double[][] measureSubImages(Image img, TileGrid grid, int[][] meanRgb) {
+        int subImageSize = grid.squareSize();
+        if (subImageSize > 0) {
+            return measureSubImages(img, subImageSize, grid.rows(), grid.cols(), meanRgb);
+        }
+        Rectangle content = img.getContentBounds();
+        int rows = grid.rows();
+        int cols = grid.cols();
+        int sumsPerTile = meanRgb == null ? 1 : 4; // luminance, then red, green and blue
+        double[][] tileSums = new double[rows][cols * sumsPerTile];
+        double[] colBounds = new double[cols + 1]; // in content columns
+        for (int j = 0; j <= cols; j++) {
+            colBounds[j] = clamp(grid.tileLeft(j) - content.x, content.width);
+        }
+        double[] rowLuminances = new double[content.width];
+        double[][] runningSums = new double[sumsPerTile][content.width + 1];
+        double[] rowSums = new double[cols * sumsPerTile];
+        img.visitContentRows((row, rgb, offset) -> {
+            double rowTop = content.y + row;
+            int firstTileRow = Math.max(0, (int) Math.floor((rowTop - grid.top()) / grid.tileHeight()));
+            if (firstTileRow >= rows || grid.tileTop(firstTileRow) >= rowTop + 1) {
+                return;
+            }
+            KERNEL.luminanceRow(rgb, offset, content.width, rowLuminances);
+            accumulateRunningSums(rowLuminances, rgb, offset, runningSums);
+            for (int j = 0; j < cols; j++) {
+                for (int k = 0; k < sumsPerTile; k++) {
+                    rowSums[j * sumsPerTile + k] = interpolate(runningSums[k], colBounds[j + 1]) -
+                            interpolate(runningSums[k], colBounds[j]);
+                }
+            }
+            for (int i = firstTileRow; i < rows && grid.tileTop(i) < rowTop + 1; i++) {
+                double overlap = Math.min(grid.tileTop(i + 1), rowTop + 1) - Math.max(grid.tileTop(i), rowTop);
+                double[] sums = tileSums[i];
+                for (int k = 0; k < sums.length; k++) {
+                    sums[k] += overlap * rowSums[k];
+                }
+            }
+        });
+        return meanTiles(img, grid, tileSums, meanRgb);
+    }
+
+    /**
+     * Fills running sums of the luminance of a row, and of its red, green and blue values if there are four
+     * running sums - the first entry of each is 0
+     */
+    private static void accumulateRunningSums(double[] rowLuminances, int[] rgb, int offset,
+                                              double[][] runningSums) {
+        double[] luminances = runningSums[0];
+        for (int x = 0; x < rowLuminances.length; x++) {
+            luminances[x + 1] = luminances[x] + rowLuminances[x];
+        }
+        for (int channel = 0; channel < runningSums.length - 1; channel++) {
+            double[] sums = runningSums[channel + 1];
+            int shift = 16 - channel * 8;
+            for (int x = 0; x < rowLuminances.length; x++) {
+                sums[x + 1] = sums[x] + ((rgb[offset + x] >> shift) & 0xFF);
+            }
+        }
+    }
+
+    /**
+     * The running sum of a row at a column that may fall inside a pixel
+     */
+    private static double interpolate(double[] runningSum, double col) {
+        int x = Math.min((int) col, runningSum.length - 2);
+        return runningSum[x] + (col - x) * (runningSum[x + 1] - runningSum[x]);
+    }
+
+    /**
+     * Turns the area weighted sums of the content of the tiles into means, the part of a tile outside the
+     * content having the fill color
+     */
+    private static double[][] meanTiles(Image img, TileGrid grid, double[][] tileSums, int[][] meanRgb) {
+        Rectangle content = img.getContentBounds();
+        double fillLuminance = KERNEL.luminance(img.getFillRgb());
+        double area = grid.tileHeight() * grid.tileWidth();
+        double[][] brightnesses = new double[grid.rows()][grid.cols()];
+        for (int i = 0; i < grid.rows(); i++) {
+            double contentRows = Math.max(0, Math.min(grid.tileTop(i + 1), content.y + content.height) -
+                    Math.max(grid.tileTop(i), content.y));
+            for (int j = 0; j < grid.cols(); j++) {
+                double contentCols = Math.max(0, Math.min(grid.tileLeft(j + 1), content.x + content.width) -
+                        Math.max(grid.tileLeft(j), content.x));
+                double fillArea = area - contentRows * contentCols;
+                if (meanRgb == null) {
+                    brightnesses[i][j] = (tileSums[i][j] + fillArea * fillLuminance) /
+                            (area * KERNEL.maxLuminance());
+                } else {
+                    double[] sums = tileSums[i];
+                    brightnesses[i][j] = (sums[j * 4] + fillArea * fillLuminance) /
+                            (area * KERNEL.maxLuminance());
+                    int color = 0;
+                    for (int channel = 0; channel < 3; channel++) {
+                        int shift = 16 - channel * 8;
+                        double total = sums[j * 4 + 1 + channel] + fillArea * ((img.getFillRgb() >> shift) & 0xFF);
+                        color |= (int) Math.min(255, Math.round(total / area)) << shift;
+                    }
+                    meanRgb[i][j] = color;
+                }
+            }
+        }
+        return brightnesses;
+    }
+
+    /**
+     * Measures the brightnesses of all the sub images of a single size in one pass over the rows of the
+     * image, without building a table - for images that are too large to index (see Image.isStreaming).
+     * Only a sum per sub image is kept, and in fixed point the results are exactly those of meanBrightness.
+     * @param img -> the image to measure
+     * @param subImageSize -> the size of the square sub images
+     * @param rows -> number of rows of sub images
+     * @param cols -> number of sub images in a row
+     * @return the mean brightness of each sub image, between 0 and 1
+     */
+    static double[][] measureSubImages(Image img, int subImageSize, int rows, int cols) {
+        return measureSubImages(img, subImageSize, rows, cols, null);
+    }
+
+    /**
+     * Like measureSubImages(img, subImageSize, rows, cols), and also finds the mean color of every sub image
+     * in the same pass - the sums of the red, green and blue values of the pixels are kept with the sum of
+     * their luminance
+     * @param meanRgb -> receives the mean packed RGB value of each sub image, or null for brightnesses only
+     * @return the mean brightness of each sub image, between 0 and 1
+     */
+    static double[][] measureSubImages(Image img, int subImageSize, int rows, int cols, int[][] meanRgb) {
+        Rectangle content = img.getContentBounds();
+        double[][] contentSums = new double[rows][cols];
+        long[][] channelSums = meanRgb == null ? null : new long[rows][cols * 3]; // red, green, blue
+        double[] rowLuminances = new double[content.width];
+        img.visitContentRows((row, rgb, offset) -> {
+            int subImageRow = (content.y + row) / subImageSize;
+            if (subImageRow < rows) {
+                KERNEL.luminanceRow(rgb, offset, content.width, rowLuminances);
+                double[] sums = contentSums[subImageRow];
+                for (int j = 0; j < cols; j++) { // the content columns of each sub image
+                    int from = Math.max(j * subImageSize - content.x, 0);
+                    int to = Math.min((j + 1) * subImageSize - content.x, content.width);
+                    if (from < to) {
+                        sums[j] += KERNEL.sum(rowLuminances, from, to);
+                        if (channelSums != null) {
+                            addChannels(rgb, offset + from, offset + to, channelSums[subImageRow], j * 3);
+                        }
+                    }
+                }
+            }
+        });
+        double fillLuminance = KERNEL.luminance(img.getFillRgb());
+        long area = (long) subImageSize * subImageSize;
+        double[][] brightnesses = new double[rows][cols];
+        for (int i = 0; i < rows; i++) {
+            int top = i * subImageSize;
+            long contentRows = Math.max(0, Math.min(top + subImageSize, content.y + content.height) -
+                    Math.max(top, content.y));
+            for (int j = 0; j < cols; j++) {
+                int left = j * subImageSize;
+                long contentCols = Math.max(0, Math.min(left + subImageSize, content.x + content.width) -
+                        Math.max(left, content.x));
+                double total = contentSums[i][j] + (area - contentRows * contentCols) * fillLuminance;
+                brightnesses[i][j] = total / (area * KERNEL.maxLuminance());
+                if (meanRgb != null) {
+                    meanRgb[i][j] = meanColor(channelSums[i], j * 3, area, area - contentRows * contentCols,
+                            img.getFillRgb());
+                }
+            }
+        }
+        return brightnesses;
+    }
+
+    /**
+     * Adds the red, green and blue values of a range of pixels to three consecutive sums
+     */
+    private static void addChannels(int[] rgb, int from, int to, long[] sums, int index) {
+        long red = 0;
+        long green = 0;
+        long blue = 0;
+        for (int k = from; k < to; k++) {
+            int pixel = rgb[k];
+            red += (pixel >> 16) & 0xFF;
+            green += (pixel >> 8) & 0xFF;
+            blue += pixel & 0xFF;
+        }
+        sums[index] += red;
+        sums[index + 1] += green;
+        sums[index + 2] += blue;
+    }
+
+    /**
+     *
+     * @param sums -> the sums of the red, green and blue values of the content pixels, from index
+     * @param area -> number of pixels in the sub image
+     * @param fillPixels -> number of pixels of the sub image that fall in the padding
+     * @param fillRgb -> the color of the padding
+     * @return the mean packed RGB value of the sub image, each channel rounded
+     */
+    private static int meanColor(long[] sums, int index, long area, long fillPixels, int fillRgb) {
+        int color = 0;
+        for (int channel = 0; channel < 3; channel++) {
+            int shift = 16 - channel * 8;
+            long total = sums[index + channel] + fillPixels * ((fillRgb >> shift) & 0xFF);
+            color |= (int) ((total + area / 2) / area) << shift;
+        }
+        return color;
+    }
+
+    /**
+     * The four lookups - sum of the luminance of the content rows [fromRow, toRow)
+     * and columns [fromCol, toCol)
+     */
+    private double sum(int fromRow, int fromCol, int toRow, int toCol) {
+        int stride = contentWidth + 1;
+        return summedArea[toRow * stride + toCol] - summedArea[fromRow * stride + toCol]
+                - summedArea[toRow * stride + fromCol] + summedArea[fromRow * stride + fromCol];
+    }
+}
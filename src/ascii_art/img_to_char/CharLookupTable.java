@@ -0,0 +1,175 @@
+package ascii_art.img_to_char;
+
+import java.util.Arrays;
+
+/**
+ * Matches a brightness to the char whose (normalized) brightness is the closest to it, in constant time.
+ * The range [0, 1] is split into buckets, and each bucket holds the closest char of every brightness in it.
+ * The few buckets that contain the middle point between two char brightnesses hold a marker instead, and
+ * brightnesses in them are compared against the two candidate chars, so the result is exactly that of
+ * comparing against every char: the closest char, and the brighter one in case of a tie.
+ * Of chars that have the same brightness, the lowest one is matched, whatever the order of the char set.
+ */
+class CharLookupTable {
+    private static final int NUM_OF_BUCKETS = 4096;
+    private static final int NEEDS_COMPARISON = -1;
+
+    private final double minBrightness;
+    private final double maxBrightness;
+    private final double[] brightnesses;
+    private final char[] charOfBrightness;
+    private final int[] buckets = new int[NUM_OF_BUCKETS];
+
+    /**
+     *
+     * @param charSet -> the chars to match
+     * @param charsBrightnesses -> the brightness of each char, in the order of charSet. They are normalized
+     *                          so the darkest char is 0 and the brightest is 1.
+     */
+    CharLookupTable(Character[] charSet, double[] charsBrightnesses) {
+        minBrightness = Arrays.stream(charsBrightnesses).min().getAsDouble();
+        maxBrightness = Arrays.stream(charsBrightnesses).max().getAsDouble();
+        double[] normalizedBrightnesses = charsBrightnesses.clone();
+        if (maxBrightness - minBrightness != 0) {
+            for (int i = 0; i < normalizedBrightnesses.length; i++) { // normalize the brightnesses
+                normalizedBrightnesses[i] = (normalizedBrightnesses[i] - minBrightness) /
+                        (maxBrightness - minBrightness);
+            }
+        }
+        Integer[] order = new Integer[charSet.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (first, second) -> {
+            int byBrightness = Double.compare(normalizedBrightnesses[first], normalizedBrightnesses[second]);
+            return byBrightness != 0 ? byBrightness : Character.compare(charSet[first], charSet[second]);
+        });
+        int numDistinct = 0;
+        for (int i = 0; i < order.length; i++) {
+            if (i == 0 || normalizedBrightnesses[order[i]] != normalizedBrightnesses[order[i - 1]]) {
+                numDistinct++;
+            }
+        }
+        brightnesses = new double[numDistinct];
+        charOfBrightness = new char[numDistinct];
+        for (int i = 0, group = 0; i < order.length; group++) {
+            int groupEnd = i;
+            while (groupEnd < order.length &&
+                    normalizedBrightnesses[order[groupEnd]] == normalizedBrightnesses[order[i]]) {
+                groupEnd++;
+            }
+            brightnesses[group] = normalizedBrightnesses[order[i]];
+            charOfBrightness[group] = charSet[order[i]]; // the chars of a brightness are sorted
+            i = groupEnd;
+        }
+        for (int bucket = 0; bucket < NUM_OF_BUCKETS; bucket++) {
+            // the closest index only grows with the brightness, so if both bounds of the bucket have the same
+            // closest index so does every brightness in between (the number of buckets is a power of 2, so
+            // the bounds and the bucket of a brightness are computed without rounding)
+            int lowest = searchClosestIndex((double) bucket / NUM_OF_BUCKETS);
+            int highest = searchClosestIndex((double) (bucket + 1) / NUM_OF_BUCKETS);
+            buckets[bucket] = lowest == highest ? lowest : NEEDS_COMPARISON;
+        }
+    }
+
+    /**
+     *
+     * @param brightness -> the brightness of a sub image
+     * @return the char whose brightness is the closest to the given one, the brighter char in case of a tie
+     */
+    char closestChar(double brightness) {
+        return charOfBrightness[closestIndex(brightness)];
+    }
+
+    /**
+     *
+     * @param index -> an index returned by closestIndex
+     * @return the char of that index
+     */
+    char charAt(int index) {
+        return charOfBrightness[index];
+    }
+
+    /**
+     *
+     * @param brightness -> the brightness of a sub image
+     * @return the index of the closest char brightness
+     */
+    int closestIndex(double brightness) {
+        int bucket = (int) (brightness * NUM_OF_BUCKETS);
+        if (bucket >= 0 && bucket < NUM_OF_BUCKETS && buckets[bucket] != NEEDS_COMPARISON) {
+            return buckets[bucket];
+        }
+        return searchClosestIndex(brightness);
+    }
+
+    /**
+     * Finds the closest char brightness with a binary search
+     * @param brightness -> the brightness of a sub image
+     * @return the index of the closest char brightness
+     */
+    private int searchClosestIndex(double brightness) {
+        int above = Arrays.binarySearch(brightnesses, brightness);
+        if (above >= 0) {
+            return above;
+        }
+        above = -above - 1; // the first brightness that is greater than the given one
+        if (above == brightnesses.length) { // there is no char brighter than the sub image
+            return above - 1;
+        }
+        if (above == 0) { // there is no char darker than the sub image
+            return 0;
+        }
+        if (Math.abs(brightness - brightnesses[above]) <= Math.abs(brightness - brightnesses[above - 1])) {
+            return above;
+        }
+        return above - 1;
+    }
+
+    /**
+     *
+     * @param index -> an index returned by closestIndex
+     * @return the brightness of the chars at that index
+     */
+    double brightnessAt(int index) {
+        return brightnesses[index];
+    }
+
+    /**
+     *
+     * @return the number of distinct char brightnesses
+     */
+    int size() {
+        return brightnesses.length;
+    }
+
+    /**
+     *
+     * @param brightness -> a normalized char brightness
+     * @return the index of the chars of that brightness, or a negative number if no char has it
+     */
+    int indexOf(double brightness) {
+        return Arrays.binarySearch(brightnesses, brightness);
+    }
+
+    /**
+     *
+     * @param index -> an index returned by closestIndex
+     * @param other -> another table
+     * @param otherIndex -> an index in the other table
+     * @return whether both indices hold the same char
+     */
+    boolean sameCharAt(int index, CharLookupTable other, int otherIndex) {
+        return charOfBrightness[index] == other.charOfBrightness[otherIndex];
+    }
+
+    /**
+     * Char sets that are normalized with the same bounds (their darkest and brightest chars are equally
+     * bright) give every char they share the same normalized brightness
+     * @param other -> another table
+     * @return whether the brightnesses of both tables were normalized with the same bounds
+     */
+    boolean sameNormalization(CharLookupTable other) {
+        return minBrightness == other.minBrightness && maxBrightness == other.maxBrightness;
+    }
+}
@@ -1,7 +1,6 @@
 package ascii_art.img_to_char;
 
 import java.awt.*;
-import java.awt.image.BufferedImage;
 
 /**
  * Inspired by, and partly copied from
@@ -9,37 +8,27 @@ import java.awt.image.BufferedImage;
  * described in the blog:
  * https://dzone.com/articles/ascii-art-generator-java
  * Adaptations made by Dan Nirel.
- * The class renders (draws) characters to a binary "image" (2D array of booleans).
+ * The class renders (draws) characters to a binary "image" (2D array of booleans), through a GlyphCache.
  */
 public class CharRenderer {
-    private static final double X_OFFSET_FACTOR = 0.2;
-    private static final double Y_OFFSET_FACTOR = 0.75;
+    private static final GlyphCache GLYPH_CACHE = new GlyphCache();
 
     /**
      * Renders a given character, according to how it looks in the font specified in the
      * constructor, to a square black&white image (2D array of booleans),
      * whose dimension in pixels is specified.
+     * Every glyph is rendered only once - the returned array is shared and must not be modified.
      */
     public static boolean[][] getImg(char c, int pixels, String fontName) {
-        int key = (pixels << 8) | c;
-        return render(c, pixels, fontName);
+        return GLYPH_CACHE.getGlyph(fontName, Font.PLAIN, pixels, c);
     }
-    private static boolean[][] render(char c, int pixels, String fontName) {
-        String charStr = Character.toString(c);
-        Font font = new Font(fontName, Font.PLAIN, pixels);
-        BufferedImage img = new BufferedImage(pixels, pixels, BufferedImage.TYPE_INT_ARGB);
-        Graphics g = img.getGraphics();
-        g.setFont(font);
-        int xOffset = (int)Math.round(pixels*X_OFFSET_FACTOR);
-        int yOffset = (int)Math.round(pixels*Y_OFFSET_FACTOR);
-        g.drawString(charStr, xOffset, yOffset);
-        boolean[][] matrix = new boolean[pixels][pixels];
-        for(int y = 0 ; y < pixels ; y++) {
-            for(int x = 0 ; x < pixels ; x++) {
-                matrix[y][x] = img.getRGB(x, y) == 0; //is the color black
-            }
-        }
-        return matrix;
+
+    /**
+     *
+     * @return the cache that holds every glyph rendered so far, e.g. in order to save it to a file
+     */
+    public static GlyphCache getGlyphCache() {
+        return GLYPH_CACHE;
     }
 
     //for debugging
@@ -0,0 +1,167 @@
+package ascii_art.img_to_char;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * A persistent cache of the grids of sub image brightnesses, so an image that was converted by an earlier run
+ * of the program is not decoded or measured again.
+ * A grid is keyed by the content hash of the image (see Image.getContentHash) and the sub image size, and is
+ * saved in a file of its own, named after the key. Files are memory mapped when they are read, and the chars
+ * are matched straight from the mapped file.
+ * The brightnesses are saved either as floats, or quantized to a byte each - four times smaller, and exact up
+ * to 1/255, which is usually far below the gap between the brightnesses of two chars.
+ * File layout: FILE_MAGIC, FILE_VERSION, the value type (FLOATS or BYTES), rows, cols, then rows*cols values
+ * row after row.
+ */
+public class DiskBrightnessCache {
+    private static final int FILE_MAGIC = 0x47524944; // "GRID"
+    private static final int FILE_VERSION = 1;
+    private static final int FLOATS = 0;
+    private static final int BYTES = 1;
+    private static final int HEADER_SIZE = 5 * Integer.BYTES;
+    private static final int MAX_QUANTIZED = 255;
+    private static final String FILE_SUFFIX = ".grid";
+
+    /**
+     * A grid of sub image brightnesses that is read from a mapped file
+     */
+    static class MappedGrid {
+        private final ByteBuffer data;
+        private final boolean quantized;
+        final int rows;
+        final int cols;
+
+        private MappedGrid(ByteBuffer data, boolean quantized, int rows, int cols) {
+            this.data = data;
+            this.quantized = quantized;
+            this.rows = rows;
+            this.cols = cols;
+        }
+
+        /**
+         *
+         * @return the brightness of the sub image in the given row and column of sub images
+         */
+        double get(int row, int col) {
+            int index = row * cols + col;
+            if (quantized) {
+                return (data.get(HEADER_SIZE + index) & 0xFF) / (double) MAX_QUANTIZED;
+            }
+            return data.getFloat(HEADER_SIZE + index * Float.BYTES);
+        }
+    }
+
+    private final Path directory;
+    private final boolean quantized;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     *
+     * @param directory -> the directory of the cache files, created if it doesn't exist
+     * @param quantized -> whether to save brightnesses as bytes instead of floats
+     * @throws IOException in case the directory couldn't be created
+     */
+    public DiskBrightnessCache(Path directory, boolean quantized) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.quantized = quantized;
+    }
+
+    /**
+     * Maps the saved grid of an image, if there is one
+     * @param contentHash -> the content hash of the image
+     * @param subImageSize -> the size of the sub images of the grid
+     * @return the mapped grid, or null if it wasn't saved (or the file is broken)
+     */
+    MappedGrid load(String contentHash, int subImageSize) {
+        Path path = pathOf(contentHash, subImageSize);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // the mapping stays valid after the channel is closed
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (channel.size() >= HEADER_SIZE && data.getInt(0) == FILE_MAGIC &&
+                    data.getInt(Integer.BYTES) == FILE_VERSION) {
+                boolean isQuantized = data.getInt(2 * Integer.BYTES) == BYTES;
+                int rows = data.getInt(3 * Integer.BYTES);
+                int cols = data.getInt(4 * Integer.BYTES);
+                long valueSize = isQuantized ? 1 : Float.BYTES;
+                if (channel.size() == HEADER_SIZE + valueSize * rows * cols) {
+                    hits.increment();
+                    return new MappedGrid(data, isQuantized, rows, cols);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            misses.increment();
+            return null;
+        } catch (IOException e) {
+            Logger.getGlobal().warning(String.format("Failed to read \"%s\"", path));
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Saves the grid of an image. The file is written under a temporary name and then renamed, so concurrent
+     * readers (also in other processes) never see a partly written file.
+     * @param contentHash -> the content hash of the image
+     * @param subImageSize -> the size of the sub images of the grid
+     * @param grid -> the brightnesses of the sub images
+     */
+    void store(String contentHash, int subImageSize, double[][] grid) {
+        int rows = grid.length;
+        int cols = rows == 0 ? 0 : grid[0].length;
+        ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE + rows * cols * (quantized ? 1 : Float.BYTES));
+        data.putInt(FILE_MAGIC).putInt(FILE_VERSION).putInt(quantized ? BYTES : FLOATS)
+                .putInt(rows).putInt(cols);
+        for (double[] row : grid) {
+            for (double brightness : row) {
+                if (quantized) {
+                    data.put((byte) Math.round(brightness * MAX_QUANTIZED));
+                } else {
+                    data.putFloat((float) brightness);
+                }
+            }
+        }
+        data.flip();
+        Path path = pathOf(contentHash, subImageSize);
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(directory, contentHash, FILE_SUFFIX);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            }
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Logger.getGlobal().warning(String.format("Failed to write \"%s\"", path));
+            deleteQuietly(temp);
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        if (path != null) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private Path pathOf(String contentHash, int subImageSize) {
+        return directory.resolve(contentHash + "-" + subImageSize + FILE_SUFFIX);
+    }
+
+    /**
+     *
+     * @return a summary of the hits and misses of the cache
+     */
+    @Override
+    public String toString() {
+        return String.format("%d hits, %d misses", hits.sum(), misses.sum());
+    }
+}
@@ -0,0 +1,225 @@
+package ascii_art.img_to_char;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * How the brightnesses of the sub images are matched to chars. Matching every sub image to the char of the
+ * closest brightness bands on gradients when the char set has few brightnesses - dithering spreads the
+ * difference between a sub image and its char over the neighbouring sub images, so the mean brightness of an
+ * area is kept.
+ * Ordered dithering treats every sub image on its own, so all the rows are dithered in parallel, and like
+ * CharLookupTable it is a lookup in buckets of brightnesses - one set of buckets per threshold of the Bayer
+ * matrix, built once per char set - so it costs about as much as matching without dithering.
+ * Error diffusion keeps the errors in float rows, and passes error to the row below, so rows are dithered as a
+ * wavefront: a block of columns of a row is dithered once the row above is done a block further, and the
+ * blocks of a step of the wavefront run in parallel.
+ */
+public enum Dithering {
+    /**
+     * Every sub image is matched to the char of the closest brightness
+     */
+    NONE,
+    /**
+     * A sub image between two char brightnesses is matched to the brighter one when its position in between
+     * passes a threshold of a 4x4 Bayer matrix
+     */
+    ORDERED,
+    /**
+     * Floyd-Steinberg error diffusion: the difference between a sub image and its char is passed on to the
+     * sub images to its right (7/16) and below it (3/16, 5/16, 1/16)
+     */
+    ERROR_DIFFUSION;
+
+    private static final int BAYER_SIZE = 4;
+    // the 4x4 Bayer matrix, as thresholds in units of 1/16 of a gap between char brightnesses
+    private static final double[][] BAYER_THRESHOLDS =
+            {{0.5, 8.5, 2.5, 10.5}, {12.5, 4.5, 14.5, 6.5}, {3.5, 11.5, 1.5, 9.5}, {15.5, 7.5, 13.5, 5.5}};
+    private static final float RIGHT_WEIGHT = 7 / 16f;
+    private static final float BELOW_LEFT_WEIGHT = 3 / 16f;
+    private static final float BELOW_WEIGHT = 5 / 16f;
+    private static final float BELOW_RIGHT_WEIGHT = 1 / 16f;
+    private static final int NUM_OF_BUCKETS = 4096;
+    private static final int NEEDS_COMPARISON = -1;
+    // the bucketed ordered lookup of every lookup table that was dithered, as long as the table is used
+    private static final Map<CharLookupTable, int[][]> ORDERED_BUCKETS =
+            Collections.synchronizedMap(new WeakHashMap<>());
+    private static final int WAVEFRONT_BLOCK_COLUMNS = 64;
+    private static final int MIN_SUB_IMAGES_FOR_WAVEFRONT = 1 << 16;
+
+    /**
+     * Matches a grid of sub image brightnesses to chars
+     * @param subImagesBrightnesses -> the brightness of every sub image
+     * @param charsBrightnesses -> the lookup table of the char set
+     * @param pool -> the pool to dither in parallel on, or null to dither on the calling thread
+     * @return the chars of the sub images
+     */
+    char[][] match(double[][] subImagesBrightnesses, CharLookupTable charsBrightnesses, ForkJoinPool pool) {
+        int numRows = subImagesBrightnesses.length;
+        int numCols = numRows == 0 ? 0 : subImagesBrightnesses[0].length;
+        char[][] asciiImage = new char[numRows][numCols];
+        switch (this) {
+            case ORDERED:
+                double[] inverseGaps = inverseGaps(charsBrightnesses);
+                int[][] buckets = ORDERED_BUCKETS.computeIfAbsent(charsBrightnesses,
+                        table -> orderedBuckets(table, inverseGaps));
+                RowBands.forEachRow(pool, numRows, numCols, i -> orderedRow(subImagesBrightnesses[i], i,
+                        charsBrightnesses, inverseGaps, buckets, asciiImage[i]));
+                break;
+            case ERROR_DIFFUSION:
+                diffuseErrors(subImagesBrightnesses, charsBrightnesses, pool, asciiImage);
+                break;
+            default:
+                RowBands.forEachRow(pool, numRows, numCols, i -> {
+                    for (int j = 0; j < numCols; j++) {
+                        asciiImage[i][j] = charsBrightnesses.closestChar(subImagesBrightnesses[i][j]);
+                    }
+                });
+        }
+        return asciiImage;
+    }
+
+    /**
+     *
+     * @return for every char brightness but the last, the inverse of the gap to the next one times the number
+     * of thresholds of the Bayer matrix, so the position of a brightness in the gap is found without dividing
+     */
+    private static double[] inverseGaps(CharLookupTable charsBrightnesses) {
+        double[] inverseGaps = new double[charsBrightnesses.size()];
+        for (int i = 0; i + 1 < inverseGaps.length; i++) {
+            inverseGaps[i] = BAYER_SIZE * BAYER_SIZE /
+                    (charsBrightnesses.brightnessAt(i + 1) - charsBrightnesses.brightnessAt(i));
+        }
+        return inverseGaps;
+    }
+
+    /**
+     * For every threshold of the Bayer matrix, splits [0, 1] into buckets that each hold the dithered index of
+     * every brightness in it. The dithered index only grows with the brightness, so if both bounds of a bucket
+     * have the same index so does every brightness in between - the other buckets hold a marker, and
+     * brightnesses in them are dithered by orderedIndex.
+     */
+    private static int[][] orderedBuckets(CharLookupTable charsBrightnesses, double[] inverseGaps) {
+        int[][] buckets = new int[BAYER_SIZE * BAYER_SIZE][NUM_OF_BUCKETS];
+        for (int t = 0; t < buckets.length; t++) {
+            double threshold = BAYER_THRESHOLDS[t / BAYER_SIZE][t % BAYER_SIZE];
+            for (int bucket = 0; bucket < NUM_OF_BUCKETS; bucket++) {
+                int lowest = orderedIndex((double) bucket / NUM_OF_BUCKETS, threshold, charsBrightnesses,
+                        inverseGaps);
+                int highest = orderedIndex((double) (bucket + 1) / NUM_OF_BUCKETS, threshold, charsBrightnesses,
+                        inverseGaps);
+                buckets[t][bucket] = lowest == highest ? lowest : NEEDS_COMPARISON;
+            }
+        }
+        return buckets;
+    }
+
+    /**
+     * Dithers a row with the Bayer matrix
+     */
+    private static void orderedRow(double[] brightnesses, int row, CharLookupTable charsBrightnesses,
+                                   double[] inverseGaps, int[][] buckets, char[] chars) {
+        int bayerRow = (row & (BAYER_SIZE - 1)) * BAYER_SIZE;
+        double[] thresholds = BAYER_THRESHOLDS[row & (BAYER_SIZE - 1)];
+        for (int j = 0; j < brightnesses.length; j++) {
+            double brightness = brightnesses[j];
+            int bucket = (int) (brightness * NUM_OF_BUCKETS);
+            int index = bucket >= 0 && bucket < NUM_OF_BUCKETS ?
+                    buckets[bayerRow + (j & (BAYER_SIZE - 1))][bucket] : NEEDS_COMPARISON;
+            if (index == NEEDS_COMPARISON) {
+                index = orderedIndex(brightness, thresholds[j & (BAYER_SIZE - 1)], charsBrightnesses,
+                        inverseGaps);
+            }
+            chars[j] = charsBrightnesses.charAt(index);
+        }
+    }
+
+    /**
+     * A brightness between two char brightnesses is matched to the brighter one when its position in the gap
+     * passes the threshold, and to the closest one otherwise (below the darkest char or above the brightest)
+     * @param threshold -> a threshold of BAYER_THRESHOLDS
+     * @return the index of the char brightness
+     */
+    private static int orderedIndex(double brightness, double threshold, CharLookupTable charsBrightnesses,
+                                    double[] inverseGaps) {
+        int index = charsBrightnesses.closestIndex(brightness);
+        int darker = charsBrightnesses.brightnessAt(index) > brightness ? index - 1 : index;
+        if (darker >= 0 && darker < inverseGaps.length - 1) { // between two char brightnesses
+            double position = (brightness - charsBrightnesses.brightnessAt(darker)) * inverseGaps[darker];
+            return position > threshold ? darker + 1 : darker;
+        }
+        return index;
+    }
+
+    /**
+     * Floyd-Steinberg dithering of the whole grid, as a wavefront of blocks when the grid is large enough.
+     * The error passed to every row is kept in a float row with a column of padding on each side (the error
+     * that falls off the grid is dropped there), and the error passed to the right from the end of a block is
+     * kept until the next block of the row.
+     * The block of row r and column block c waits for row r-1 to be done through column block c+1 and for
+     * row r to be done through column block c-1, so it runs at step 2r+c, after both of them.
+     */
+    private static void diffuseErrors(double[][] subImagesBrightnesses, CharLookupTable charsBrightnesses,
+                                      ForkJoinPool pool, char[][] asciiImage) {
+        int numRows = subImagesBrightnesses.length;
+        int numCols = numRows == 0 ? 0 : subImagesBrightnesses[0].length;
+        int numBlocks = (numCols + WAVEFRONT_BLOCK_COLUMNS - 1) / WAVEFRONT_BLOCK_COLUMNS;
+        if (pool == null || (long) numRows * numCols < MIN_SUB_IMAGES_FOR_WAVEFRONT || numBlocks < 2) {
+            float[] errors = new float[numCols + 2];
+            float[] nextErrors = new float[numCols + 2];
+            for (int i = 0; i < numRows; i++) {
+                Arrays.fill(nextErrors, 0);
+                diffuseBlock(subImagesBrightnesses[i], errors, nextErrors, 0, 0, numCols, charsBrightnesses,
+                        asciiImage[i]);
+                float[] swap = errors;
+                errors = nextErrors;
+                nextErrors = swap;
+            }
+            return;
+        }
+        float[][] errors = new float[numRows + 1][numCols + 2];
+        float[] carries = new float[numRows];
+        pool.invoke(ForkJoinTask.adapt(() -> { // the steps are started from a worker of the pool
+            List<ForkJoinTask<?>> step = new ArrayList<>();
+            for (int s = 0; s < 2 * (numRows - 1) + numBlocks; s++) {
+                step.clear();
+                for (int row = Math.max(0, (s - numBlocks + 2) / 2); row < numRows && 2 * row <= s; row++) {
+                    int i = row;
+                    int from = (s - 2 * row) * WAVEFRONT_BLOCK_COLUMNS;
+                    int to = Math.min(from + WAVEFRONT_BLOCK_COLUMNS, numCols);
+                    step.add(ForkJoinTask.adapt(() -> carries[i] = diffuseBlock(subImagesBrightnesses[i],
+                            errors[i], errors[i + 1], carries[i], from, to, charsBrightnesses, asciiImage[i])));
+                }
+                ForkJoinTask.invokeAll(step);
+            }
+        }));
+    }
+
+    /**
+     * Dithers the columns [from, to) of a row, passing the errors to the following columns and to the row below
+     * @param errors -> the errors passed to the row, column j at j + 1
+     * @param nextErrors -> receives the errors passed to the row below, column j at j + 1
+     * @param carry -> the error passed to column from by the column before it
+     * @return the error passed to column to by the last column of the block
+     */
+    private static float diffuseBlock(double[] brightnesses, float[] errors, float[] nextErrors, float carry,
+                                      int from, int to, CharLookupTable charsBrightnesses, char[] chars) {
+        for (int j = from; j < to; j++) {
+            float value = (float) brightnesses[j] + errors[j + 1] + carry;
+            int index = charsBrightnesses.closestIndex(value);
+            chars[j] = charsBrightnesses.charAt(index);
+            float error = value - (float) charsBrightnesses.brightnessAt(index);
+            carry = error * RIGHT_WEIGHT;
+            nextErrors[j] += error * BELOW_LEFT_WEIGHT;
+            nextErrors[j + 1] += error * BELOW_WEIGHT;
+            nextErrors[j + 2] += error * BELOW_RIGHT_WEIGHT;
+        }
+        return carry;
+    }
+}
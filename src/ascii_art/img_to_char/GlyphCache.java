@@ -0,0 +1,224 @@
+package ascii_art.img_to_char;
+
+import metrics.PipelineMetrics;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of rendered glyphs, keyed by font name, font style, size in pixels and char, so every glyph is
+ * drawn only once. Glyphs of the same font and size are drawn on a single scratch image that is cleared
+ * between glyphs. The cache can be saved to a small binary file and loaded back, so a later run finds its
+ * glyphs without drawing anything.
+ */
+public class GlyphCache {
+    private static final double X_OFFSET_FACTOR = 0.2;
+    private static final double Y_OFFSET_FACTOR = 0.75;
+    private static final int FILE_MAGIC = 0x474C5948; // "GLYH"
+    private static final int FILE_VERSION = 1;
+    private static final int MAX_FILE_PIXELS = 1024; // far above any render size, a glyph is pixels^2 booleans
+    private static final int STYLE_MASK = Font.BOLD | Font.ITALIC;
+
+    /**
+     * The key of a rendered glyph
+     */
+    private record GlyphKey(String fontName, int style, int pixels, char c) {
+    }
+
+    /**
+     * The key of a scratch image - glyphs that differ only by their char share it
+     */
+    private record FontKey(String fontName, int style, int pixels) {
+    }
+
+    private final Map<GlyphKey, boolean[][]> glyphs = new ConcurrentHashMap<>();
+    private final Map<FontKey, ScratchRenderer> renderers = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private volatile boolean modified = false;
+
+    /**
+     * Returns the glyph of a char, drawing it only if it was not drawn (or loaded) before.
+     * The returned array is shared and must not be modified.
+     * @param fontName -> the name of the font
+     * @param style -> the style of the font, e.g. Font.PLAIN
+     * @param pixels -> the dimension of the square the glyph is drawn in
+     * @param c -> the char to draw
+     * @return a square black&white image of the glyph, true where the pixel is black (not drawn)
+     */
+    @SuppressWarnings("try")
+    public boolean[][] getGlyph(String fontName, int style, int pixels, char c) {
+        boolean[][] glyph = glyphs.get(new GlyphKey(fontName, style, pixels, c));
+        if (glyph != null) {
+            hits.increment();
+            return glyph;
+        }
+        misses.increment();
+        return glyphs.computeIfAbsent(new GlyphKey(fontName, style, pixels, c), key -> {
+            modified = true;
+            try (PipelineMetrics.Timer timer = PipelineMetrics.start(PipelineMetrics.Stage.GLYPHS)) {
+                return renderers.computeIfAbsent(new FontKey(fontName, style, pixels), ScratchRenderer::new)
+                        .render(c);
+            }
+        });
+    }
+
+    /**
+     *
+     * @return number of glyphs that were found in the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     *
+     * @return number of glyphs that were not in the cache, and were drawn
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     *
+     * @return true if glyphs were drawn since the cache was created, loaded or saved
+     */
+    public boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * Saves every glyph in the cache to a binary file
+     * @param path -> the file to write
+     * @throws IOException in case the file couldn't be written
+     */
+    public void save(Path path) throws IOException {
+        try (DataOutputStream out =
+                     new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            Map<GlyphKey, boolean[][]> snapshot = Map.copyOf(glyphs);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<GlyphKey, boolean[][]> entry : snapshot.entrySet()) {
+                GlyphKey key = entry.getKey();
+                out.writeUTF(key.fontName());
+                out.writeByte(key.style());
+                out.writeShort(key.pixels());
+                out.writeChar(key.c());
+                writeBits(out, entry.getValue());
+            }
+        }
+        modified = false;
+    }
+
+    /**
+     * Adds the glyphs saved in a binary file to the cache - all of them, or none if the file is damaged
+     * @param path -> a file written by save
+     * @throws IOException in case the file couldn't be read or is not a glyph file
+     */
+    public void load(Path path) throws IOException {
+        Map<GlyphKey, boolean[][]> loaded = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                throw new IOException("Not a glyph cache file: " + path);
+            }
+            int numGlyphs = in.readInt();
+            for (int i = 0; i < numGlyphs; i++) {
+                String fontName = in.readUTF();
+                int style = in.readByte();
+                int pixels = in.readShort();
+                char c = in.readChar();
+                // a damaged size would allocate a glyph of up to 32767^2 booleans before the end of the file
+                if (pixels <= 0 || pixels > MAX_FILE_PIXELS || (style & ~STYLE_MASK) != 0) {
+                    throw new IOException("Not a glyph cache file: " + path);
+                }
+                loaded.put(new GlyphKey(fontName, style, pixels, c), readBits(in, pixels));
+            }
+        }
+        loaded.forEach(glyphs::putIfAbsent);
+    }
+
+    /**
+     * Writes a glyph as packed bits, row after row
+     */
+    private static void writeBits(DataOutputStream out, boolean[][] glyph) throws IOException {
+        int currentByte = 0;
+        int numBits = 0;
+        for (boolean[] row : glyph) {
+            for (boolean bit : row) {
+                currentByte = (currentByte << 1) | (bit ? 1 : 0);
+                if (++numBits == Byte.SIZE) {
+                    out.writeByte(currentByte);
+                    currentByte = 0;
+                    numBits = 0;
+                }
+            }
+        }
+        if (numBits > 0) {
+            out.writeByte(currentByte << (Byte.SIZE - numBits));
+        }
+    }
+
+    /**
+     * Reads a glyph written by writeBits
+     */
+    private static boolean[][] readBits(DataInputStream in, int pixels) throws IOException {
+        boolean[][] glyph = new boolean[pixels][pixels];
+        int currentByte = 0;
+        int numBits = 0;
+        for (int y = 0; y < pixels; y++) {
+            for (int x = 0; x < pixels; x++) {
+                if (numBits == 0) {
+                    currentByte = in.readUnsignedByte();
+                    numBits = Byte.SIZE;
+                }
+                glyph[y][x] = ((currentByte >> --numBits) & 1) == 1;
+            }
+        }
+        return glyph;
+    }
+
+    /**
+     * Draws the glyphs of one font and size on a single scratch image.
+     * Inspired by, and partly copied from
+     * https://github.com/korhner/asciimg/blob/95c7764a6abe0e893fae56b3b6b580e09e1de209/src/main/java/io/korhner/asciimg/image/AsciiImgCache.java
+     */
+    private static class ScratchRenderer {
+        private final int pixels;
+        private final BufferedImage img;
+        private final int[] imgData;
+        private final Graphics g;
+        private final int xOffset;
+        private final int yOffset;
+
+        ScratchRenderer(FontKey key) {
+            pixels = key.pixels();
+            img = new BufferedImage(pixels, pixels, BufferedImage.TYPE_INT_ARGB);
+            imgData = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+            g = img.getGraphics();
+            g.setFont(new Font(key.fontName(), key.style(), pixels));
+            xOffset = (int)Math.round(pixels*X_OFFSET_FACTOR);
+            yOffset = (int)Math.round(pixels*Y_OFFSET_FACTOR);
+        }
+
+        synchronized boolean[][] render(char c) {
+            Arrays.fill(imgData, 0);
+            g.drawString(Character.toString(c), xOffset, yOffset);
+            boolean[][] matrix = new boolean[pixels][pixels];
+            for(int y = 0 ; y < pixels ; y++) {
+                for(int x = 0 ; x < pixels ; x++) {
+                    matrix[y][x] = imgData[y * pixels + x] == 0; //is the color black
+                }
+            }
+            return matrix;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package ascii_art.img_to_char;
+
+/**
+ * Matches a two-dimensional array of characters that represents an ASCII image to an image
+ */
+public interface ImgCharMatcher {
+    /**
+     *
+     * @param numCharsInRow -> the number of characters that will replace a row of pixels of the image. This
+     *                      number is blocked from above by the number of pixels in a row of the image.
+     * @param charSet -> The array of characters from which we will build the ASCII image
+     * @return A two-dimensional array of characters that represents the image
+     */
+    char[][] chooseChars(int numCharsInRow, Character[] charSet);
+
+    /**
+     * Like chooseChars(numCharsInRow, charSet), sampling only the content of the image (without its padding)
+     * with sub images of any size, which need not be square nor a whole number of pixels
+     * @param numCharsInRow -> the number of characters in a row of the ASCII image, positive
+     * @param cellAspectRatio -> the height of a cell of the output divided by its width - a sub image is this
+     *                        much higher than it is wide, so the ASCII image keeps the proportions of the image
+     * @param charSet -> The array of characters from which we will build the ASCII image
+     * @return A two-dimensional array of characters that represents the image
+     * @throws IllegalArgumentException if numCharsInRow or cellAspectRatio is not positive
+     */
+    char[][] chooseChars(int numCharsInRow, double cellAspectRatio, Character[] charSet);
+}
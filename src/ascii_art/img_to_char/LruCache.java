@@ -0,0 +1,250 @@
+package ascii_art.img_to_char;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * A bounded cache that evicts the least recently used entries once the total weight of its values exceeds
+ * a maximum. The keys are spread over segments, each guarded by its own lock, so threads working on
+ * different keys rarely wait for each other and there is no global lock. Eviction is least recently used
+ * within a segment, starting with the segment of the inserted key.
+ * A value that is computed by computeIfAbsent is computed once - threads that miss on a key while it's being
+ * computed wait for that computation.
+ * @param <K> type of the keys
+ * @param <V> type of the values
+ */
+public class LruCache<K, V> {
+    private static final int NUM_OF_SEGMENTS = 16;
+
+    private final Map<K, V>[] segments;
+    private final long maxWeight;
+    private final ToLongFunction<V> weigher;
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong weight = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * A cache where every entry weighs 1, i.e. bounded by number of entries
+     * @param maxEntries -> the maximal number of entries
+     */
+    public LruCache(long maxEntries) {
+        this(maxEntries, value -> 1);
+    }
+
+    /**
+     *
+     * @param maxWeight -> the maximal total weight of the values in the cache
+     * @param weigher -> gives the weight of a value, e.g. its size in bytes
+     */
+    @SuppressWarnings("unchecked")
+    public LruCache(long maxWeight, ToLongFunction<V> weigher) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        segments = (Map<K, V>[]) new Map<?, ?>[NUM_OF_SEGMENTS];
+        for (int i = 0; i < NUM_OF_SEGMENTS; i++) {
+            segments[i] = new LinkedHashMap<>(16, 0.75f, true); // ordered from least to most recently used
+        }
+    }
+
+    /**
+     *
+     * @param key -> a key to look for
+     * @return the value of the key, or null if it's not in the cache
+     */
+    public V get(K key) {
+        Map<K, V> segment = segmentOf(key);
+        V value;
+        synchronized (segment) {
+            value = segment.get(key);
+        }
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    /**
+     * Returns the value of the key, computing it first if it's not in the cache. The computation runs without
+     * holding the lock of a segment, so other keys are not blocked, but threads that miss on the same key
+     * while it's computed wait for it instead of computing it again. The computation must not compute the
+     * same key of this cache.
+     * @param key -> a key to look for
+     * @param computation -> computes the value of a missing key
+     * @return the value of the key
+     */
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> computation) {
+        V value = get(key);
+        if (value != null) {
+            return value;
+        }
+        CompletableFuture<V> computing = new CompletableFuture<>();
+        CompletableFuture<V> identical = inFlight.putIfAbsent(key, computing);
+        if (identical != null) {
+            try {
+                return identical.join();
+            } catch (CompletionException e) { // the computation failed in the other thread
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw e;
+            }
+        }
+        try {
+            // an identical computation may have ended between the lookup and registering this one
+            Map<K, V> segment = segmentOf(key);
+            synchronized (segment) {
+                value = segment.get(key);
+            }
+            if (value == null) {
+                V computed = computation.apply(key);
+                value = putIfAbsent(key, computed);
+                if (value == null) {
+                    value = computed;
+                }
+            }
+            computing.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            computing.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, computing);
+        }
+    }
+
+    /**
+     * Puts a value in the cache, evicting least recently used entries if the cache becomes too heavy
+     * @param key -> the key of the value
+     * @param value -> the value to put
+     */
+    public void put(K key, V value) {
+        Map<K, V> segment = segmentOf(key);
+        V previous;
+        synchronized (segment) {
+            previous = segment.put(key, value);
+        }
+        weight.addAndGet(weigher.applyAsLong(value) - (previous == null ? 0 : weigher.applyAsLong(previous)));
+        evictIfNeeded(segment);
+    }
+
+    /**
+     *
+     * @return the value that was already in the cache, or null if the given value was put
+     */
+    private V putIfAbsent(K key, V value) {
+        Map<K, V> segment = segmentOf(key);
+        synchronized (segment) {
+            V existing = segment.putIfAbsent(key, value);
+            if (existing != null) {
+                return existing;
+            }
+        }
+        weight.addAndGet(weigher.applyAsLong(value));
+        evictIfNeeded(segment);
+        return null;
+    }
+
+    /**
+     * Removes every entry of the cache. The counters are not reset
+     */
+    public void clear() {
+        for (Map<K, V> segment : segments) {
+            synchronized (segment) {
+                for (V value : segment.values()) {
+                    weight.addAndGet(-weigher.applyAsLong(value));
+                }
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * Evicts least recently used entries, first from the given segment and then from the others,
+     * until the cache is light enough. The most recently used entry of the given segment is kept.
+     */
+    private void evictIfNeeded(Map<K, V> insertedSegment) {
+        int start = 0;
+        while (start < NUM_OF_SEGMENTS && segments[start] != insertedSegment) {
+            start++;
+        }
+        for (int i = 0; i < NUM_OF_SEGMENTS && weight.get() > maxWeight; i++) {
+            Map<K, V> segment = segments[(start + i) % NUM_OF_SEGMENTS];
+            synchronized (segment) {
+                Iterator<V> iterator = segment.values().iterator();
+                int keep = segment == insertedSegment ? 1 : 0;
+                while (weight.get() > maxWeight && segment.size() > keep) {
+                    V evicted = iterator.next();
+                    iterator.remove();
+                    weight.addAndGet(-weigher.applyAsLong(evicted));
+                    evictions.increment();
+                }
+            }
+        }
+    }
+
+    private Map<K, V> segmentOf(K key) {
+        int hash = key.hashCode();
+        return segments[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % NUM_OF_SEGMENTS];
+    }
+
+    /**
+     *
+     * @return the number of entries in the cache
+     */
+    public int size() {
+        int size = 0;
+        for (Map<K, V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     *
+     * @return the total weight of the values in the cache
+     */
+    public long getWeight() {
+        return weight.get();
+    }
+
+    /**
+     *
+     * @return the number of lookups that found their key
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     *
+     * @return the number of lookups that did not find their key
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     *
+     * @return the number of entries evicted to keep the cache bounded
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+}
@@ -0,0 +1,220 @@
+package ascii_art.img_to_char;
+
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * Converts rows of packed RGB values to luminance, the brightness of a pixel as the eye sees it:
+ * R*0.2126 + G*0.7152 + B*0.0722, and sums them.
+ * The luminance is computed in one of two arithmetics (-Dascii_art.luminance=fixed|double, fixed by default):
+ * - FIXED_POINT: the weights are multiplied by 10000, which makes them exact integers, so the luminance of a
+ *   pixel is an integer exactly 10000 times that of the double formula. Every sum of luminances of an image that
+ *   fits in memory is below 2^53, so it is exact in a double whatever the order of the additions - a mean
+ *   brightness differs from the one of the double formula only by the rounding of the division, which is below
+ *   TOLERANCE (relative to the full scale), and the scalar and vector kernels give the same results.
+ * - DOUBLE: the double formula itself, rounded at every pixel and every addition - so a mean taken from the
+ *   difference of large sums (the summed-area table of a large image) loses some of its low bits.
+ * There are two kernels of each arithmetic: a scalar one, a counted loop over arrays with no branches or calls
+ * that the superword pass of the C2 compiler may vectorize (luminanceRow, not the reduction of sum), and one of
+ * explicit SIMD instructions with the Vector API (VectorLuminanceKernel), which is only used when the incubator
+ * module is in the boot layer (java --add-modules jdk.incubator.vector) and -Dascii_art.vector isn't false.
+ * The kernel of the run is the one of get().
+ */
+public abstract class LuminanceKernel {
+    static final int RED_WEIGHT = 2126;
+    static final int GREEN_WEIGHT = 7152;
+    static final int BLUE_WEIGHT = 722;
+    static final double RED = 0.2126;
+    static final double GREEN = 0.7152;
+    static final double BLUE = 0.0722;
+    private static final String VECTOR_MODULE = "jdk.incubator.vector";
+    private static final String VECTOR_KERNEL = "ascii_art.img_to_char.VectorLuminanceKernel";
+    /**
+     * The largest difference between a mean brightness computed in fixed point and with the double formula
+     */
+    public static final double TOLERANCE = 1e-12;
+
+    /**
+     * The arithmetic luminances are computed in
+     */
+    public enum Arithmetic {
+        FIXED_POINT(255.0 * 10000),
+        DOUBLE(255.0);
+
+        private final double maxLuminance;
+
+        Arithmetic(double maxLuminance) {
+            this.maxLuminance = maxLuminance;
+        }
+
+        /**
+         *
+         * @return the luminance of white
+         */
+        public double maxLuminance() {
+            return maxLuminance;
+        }
+    }
+
+    private static final LuminanceKernel KERNEL = select();
+
+    private final Arithmetic arithmetic;
+
+    LuminanceKernel(Arithmetic arithmetic) {
+        this.arithmetic = arithmetic;
+    }
+
+    /**
+     *
+     * @return the kernel of the run: of the arithmetic of -Dascii_art.luminance, with the Vector API if it is
+     * available
+     */
+    public static LuminanceKernel get() {
+        return KERNEL;
+    }
+
+    /**
+     *
+     * @param arithmetic -> the arithmetic of the kernel
+     * @return the scalar kernel of the arithmetic
+     */
+    public static LuminanceKernel scalar(Arithmetic arithmetic) {
+        return new ScalarKernel(arithmetic);
+    }
+
+    /**
+     *
+     * @param arithmetic -> the arithmetic of the kernel
+     * @return the Vector API kernel of the arithmetic, or null if jdk.incubator.vector isn't in the boot layer
+     */
+    public static LuminanceKernel vector(Arithmetic arithmetic) {
+        if (ModuleLayer.boot().findModule(VECTOR_MODULE).isEmpty()) {
+            return null;
+        }
+        try {
+            // loaded by name, so this class links without the incubator module
+            return (LuminanceKernel) Class.forName(VECTOR_KERNEL).getDeclaredConstructor(Arithmetic.class)
+                    .newInstance(arithmetic);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            Logger.getGlobal().warning("Failed to load the Vector API luminance kernel: " + e);
+            return null;
+        }
+    }
+
+    private static LuminanceKernel select() {
+        String name = System.getProperty("ascii_art.luminance", "fixed");
+        Arithmetic arithmetic = name.toLowerCase(Locale.ROOT).equals("double") ? Arithmetic.DOUBLE :
+                Arithmetic.FIXED_POINT;
+        LuminanceKernel kernel = null;
+        if (!System.getProperty("ascii_art.vector", "true").equalsIgnoreCase("false")) {
+            kernel = vector(arithmetic);
+        }
+        return kernel == null ? scalar(arithmetic) : kernel;
+    }
+
+    /**
+     *
+     * @return the arithmetic of the kernel
+     */
+    public Arithmetic arithmetic() {
+        return arithmetic;
+    }
+
+    /**
+     *
+     * @return the luminance of white in the arithmetic of the kernel
+     */
+    public double maxLuminance() {
+        return arithmetic.maxLuminance();
+    }
+
+    /**
+     *
+     * @return true if the kernel runs on the Vector API
+     */
+    public abstract boolean isVector();
+
+    /**
+     *
+     * @param rgb -> a packed RGB value
+     * @return the luminance of the color in the arithmetic of the kernel
+     */
+    public double luminance(int rgb) {
+        return arithmetic == Arithmetic.FIXED_POINT ? fixedLuminance(rgb) : doubleLuminance(rgb);
+    }
+
+    /**
+     * Converts a row of pixels at once
+     * @param rgb -> packed RGB values
+     * @param offset -> the index in rgb of the first pixel of the row
+     * @param length -> number of pixels in the row
+     * @param luminances -> receives the luminance of every pixel, from index 0
+     */
+    public abstract void luminanceRow(int[] rgb, int offset, int length, double[] luminances);
+
+    /**
+     *
+     * @param luminances -> luminances of pixels
+     * @param from -> the first index to sum
+     * @param to -> the index right after the last one to sum
+     * @return the sum of the luminances
+     */
+    public abstract double sum(double[] luminances, int from, int to);
+
+    @Override
+    public String toString() {
+        return (isVector() ? "vector " : "scalar ") + arithmetic.name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     *
+     * @return the luminance of a packed RGB value in fixed point, at most 2550000 so it fits an int
+     */
+    static int fixedLuminance(int rgb) {
+        return ((rgb >> 16) & 0xFF) * RED_WEIGHT + ((rgb >> 8) & 0xFF) * GREEN_WEIGHT + (rgb & 0xFF) * BLUE_WEIGHT;
+    }
+
+    /**
+     *
+     * @return the luminance of a packed RGB value with the double formula
+     */
+    static double doubleLuminance(int rgb) {
+        return ((rgb >> 16) & 0xFF) * RED + ((rgb >> 8) & 0xFF) * GREEN + (rgb & 0xFF) * BLUE;
+    }
+
+    /**
+     * The loops of both arithmetics in plain Java
+     */
+    private static final class ScalarKernel extends LuminanceKernel {
+        ScalarKernel(Arithmetic arithmetic) {
+            super(arithmetic);
+        }
+
+        @Override
+        public boolean isVector() {
+            return false;
+        }
+
+        @Override
+        public void luminanceRow(int[] rgb, int offset, int length, double[] luminances) {
+            if (arithmetic() == Arithmetic.FIXED_POINT) {
+                for (int i = 0; i < length; i++) {
+                    luminances[i] = fixedLuminance(rgb[offset + i]);
+                }
+            } else {
+                for (int i = 0; i < length; i++) {
+                    luminances[i] = doubleLuminance(rgb[offset + i]);
+                }
+            }
+        }
+
+        @Override
+        public double sum(double[] luminances, int from, int to) {
+            double sum = 0;
+            for (int i = from; i < to; i++) {
+                sum += luminances[i];
+            }
+            return sum;
+        }
+    }
+}
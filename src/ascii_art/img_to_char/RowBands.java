@@ -0,0 +1,66 @@
+package ascii_art.img_to_char;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs an action on every row of sub images of a matcher, splitting the rows into bands that are converted
+ * in parallel on a fork/join pool
+ */
+final class RowBands {
+    private static final int MIN_SUB_IMAGES_PER_TASK = 4096;
+
+    private RowBands() {
+    }
+
+    /**
+     * Runs the given action on every row of sub images. When there is a pool, the rows are split into
+     * bands that are converted in parallel. Every row is handled by exactly one task and writes only to its
+     * own row of the result, so the result does not depend on the order the bands run in.
+     * @param pool -> the pool to run the bands on, or null to run all the rows on the calling thread
+     * @param numRows -> number of rows of sub images
+     * @param numCols -> number of sub images in a row
+     * @param rowAction -> converts a single row, given its index
+     */
+    static void forEachRow(ForkJoinPool pool, int numRows, int numCols, IntConsumer rowAction) {
+        if (pool == null || (long) numRows * numCols <= MIN_SUB_IMAGES_PER_TASK) {
+            for (int i = 0; i < numRows; i++) {
+                rowAction.accept(i);
+            }
+        } else {
+            pool.invoke(new RowBandTask(0, numRows, numCols, rowAction));
+        }
+    }
+
+    /**
+     * A band of rows of sub images, split in halves until it's small enough to be converted by one thread
+     */
+    private static class RowBandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int fromRow;
+        private final int toRow;
+        private final int numCols;
+        private final IntConsumer rowAction;
+
+        RowBandTask(int fromRow, int toRow, int numCols, IntConsumer rowAction) {
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.numCols = numCols;
+            this.rowAction = rowAction;
+        }
+
+        @Override
+        protected void compute() {
+            if (toRow - fromRow > 1 && (long) (toRow - fromRow) * numCols > MIN_SUB_IMAGES_PER_TASK) {
+                int middle = (fromRow + toRow) >>> 1;
+                invokeAll(new RowBandTask(fromRow, middle, numCols, rowAction),
+                        new RowBandTask(middle, toRow, numCols, rowAction));
+            } else {
+                for (int i = fromRow; i < toRow; i++) {
+                    rowAction.accept(i);
+                }
+            }
+        }
+    }
+}
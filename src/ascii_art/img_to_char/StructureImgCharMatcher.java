@@ -0,0 +1,267 @@
+package ascii_art.img_to_char;
+
+import image.Image;
+import metrics.PipelineMetrics;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Matches every sub image to the char whose shape, and not only its brightness, is the closest to it.
+ * A sub image is split into a grid of 8x8 cells and the mean brightness of every cell is measured (from the
+ * brightness index of the image). Every glyph is reduced to 8x8 cells too, packed as the bits of a single long.
+ * The distance between a sub image and a char is the difference between their brightnesses plus the fraction
+ * of cells where their patterns differ (the popcount of the XOR of the masks, the sub image cells being set
+ * where they are brighter than the sub image mean), weighted by the contrast of the sub image - so a flat sub
+ * image is matched by brightness alone, like in BrightnessImgCharMatcher, and an edge by the char that draws it.
+ * The chars are sorted by brightness, and the search starts from the char of the closest brightness and stops
+ * in each direction once the brightness difference alone exceeds the best distance found, so most sub images
+ * compare only a few chars even with the full printable range.
+ */
+public class StructureImgCharMatcher implements ImgCharMatcher {
+    private static final int CELLS = 8; // cells in a row and in a column of a sub image, CELLS * CELLS = 64 bits
+    private static final int GLYPH_PIXELS_PER_CELL =
+            BrightnessImgCharMatcher.NUM_OF_PIXELS_TO_RENDER_CHAR / CELLS;
+    private static final int MIN_BRIGHT_PIXELS_IN_CELL = (GLYPH_PIXELS_PER_CELL * GLYPH_PIXELS_PER_CELL + 1) / 2;
+
+    private final Image img;
+    private final String font;
+    private final ForkJoinPool pool;
+    private final BrightnessCache cache;
+    private volatile GlyphSet glyphSet; // the glyphs of the last char set
+
+    /**
+     *
+     * @param img -> the orig img
+     * @param font -> a font of the chars that will be in the ASCII image
+     * @param pool -> the pool that matches bands of sub image rows in parallel, or null for a serial match
+     * @param cache -> where the brightness index of the image and the brightnesses of chars are saved, it may
+     *              be shared with brightness matchers
+     */
+    public StructureImgCharMatcher(Image img, String font, ForkJoinPool pool, BrightnessCache cache) {
+        this.img = img;
+        this.font = font;
+        this.pool = pool;
+        this.cache = cache;
+    }
+
+    @Override
+    public char[][] chooseChars(int numCharsInRow, Character[] charSet) {
+        return chooseChars(TileGrid.squares(img, numCharsInRow), charSet);
+    }
+
+    @Override
+    public char[][] chooseChars(int numCharsInRow, double cellAspectRatio, Character[] charSet) {
+        return chooseChars(TileGrid.fit(img, numCharsInRow, cellAspectRatio), charSet);
+    }
+
+    @SuppressWarnings("try")
+    private char[][] chooseChars(TileGrid grid, Character[] charSet) {
+        try (PipelineMetrics.Timer timer = PipelineMetrics.start(PipelineMetrics.Stage.MATCH)) {
+            if (charSet.length == 0) {
+                return new char[0][];
+            }
+            int numCharsInCol = grid.rows();
+            int numCharsInRow = grid.cols();
+            GlyphSet glyphs = getGlyphSet(charSet);
+            CellSource cells = cellSource(grid);
+            char[][] asciiImage = new char[numCharsInCol][numCharsInRow];
+            RowBands.forEachRow(pool, numCharsInCol, numCharsInRow, i -> {
+                double[] cellBrightnesses = new double[CELLS * CELLS];
+                for (int j = 0; j < numCharsInRow; j++) {
+                    cells.measure(i, j, cellBrightnesses);
+                    asciiImage[i][j] = glyphs.closestChar(cellBrightnesses);
+                }
+            });
+            return asciiImage;
+        }
+    }
+
+    /**
+     * Measures the cells of a sub image
+     */
+    @FunctionalInterface
+    private interface CellSource {
+        /**
+         * @param row -> the row of the sub image
+         * @param col -> the column of the sub image
+         * @param cellBrightnesses -> receives the mean brightness of every cell, row after row
+         */
+        void measure(int row, int col, double[] cellBrightnesses);
+    }
+
+    /**
+     * The cells of an image that can be indexed are measured in the brightness index, the cell bounds being
+     * spread evenly over the sub image - in whole pixels in a grid of squares, and area weighted in any other
+     * grid. A streaming image is measured in a single pass over its rows: a grid of squares as a grid of square
+     * cells of subImageSize / 8 pixels (so when the size is not a multiple of 8, the last pixels of the sub
+     * image are not measured), and any other grid as the grid of the cells.
+     */
+    @SuppressWarnings("try")
+    private CellSource cellSource(TileGrid grid) {
+        int subImageSize = grid.squareSize();
+        if (!img.isStreaming()) {
+            BrightnessIndex brightnessIndex = cache.brightnessIndexOf(img);
+            if (subImageSize == 0) {
+                TileGrid cellGrid = grid.split(CELLS);
+                return (row, col, cellBrightnesses) -> {
+                    for (int u = 0; u < CELLS; u++) {
+                        for (int v = 0; v < CELLS; v++) {
+                            cellBrightnesses[u * CELLS + v] =
+                                    brightnessIndex.meanBrightness(cellGrid, row * CELLS + u, col * CELLS + v);
+                        }
+                    }
+                };
+            }
+            return (row, col, cellBrightnesses) -> {
+                for (int u = 0; u < CELLS; u++) {
+                    int top = u * subImageSize / CELLS;
+                    int height = Math.max(1, (u + 1) * subImageSize / CELLS - top);
+                    for (int v = 0; v < CELLS; v++) {
+                        int left = v * subImageSize / CELLS;
+                        int width = Math.max(1, (v + 1) * subImageSize / CELLS - left);
+                        cellBrightnesses[u * CELLS + v] = brightnessIndex.meanBrightness(
+                                row * subImageSize + top, col * subImageSize + left, height, width);
+                    }
+                }
+            };
+        }
+        double[][] cells;
+        try (PipelineMetrics.Timer timer = PipelineMetrics.start(PipelineMetrics.Stage.INDEX)) {
+            cells = subImageSize == 0 ? BrightnessIndex.measureSubImages(img, grid.split(CELLS), null) :
+                    BrightnessIndex.measureSubImages(img, Math.max(1, subImageSize / CELLS), grid.rows() * CELLS,
+                            grid.cols() * CELLS);
+        }
+        return (row, col, cellBrightnesses) -> {
+            for (int u = 0; u < CELLS; u++) {
+                System.arraycopy(cells[row * CELLS + u], col * CELLS, cellBrightnesses, u * CELLS, CELLS);
+            }
+        };
+    }
+
+    /**
+     * The glyphs of a char set are built once, and kept until another char set is matched
+     */
+    private GlyphSet getGlyphSet(Character[] charSet) {
+        char[] sortedChars = new char[charSet.length];
+        for (int i = 0; i < charSet.length; i++) {
+            sortedChars[i] = charSet[i];
+        }
+        Arrays.sort(sortedChars);
+        GlyphSet glyphs = glyphSet;
+        if (glyphs == null || !Arrays.equals(glyphs.sortedChars, sortedChars)) {
+            glyphs = new GlyphSet(sortedChars);
+            glyphSet = glyphs;
+        }
+        return glyphs;
+    }
+
+    /**
+     * The masks and normalized brightnesses of the glyphs of a char set, sorted by brightness
+     */
+    private class GlyphSet {
+        private final char[] sortedChars;
+        private final char[] chars;
+        private final double[] brightnesses;
+        private final long[] masks;
+
+        GlyphSet(char[] sortedChars) {
+            this.sortedChars = sortedChars;
+            int numChars = sortedChars.length;
+            double[] charBrightnesses = new double[numChars];
+            for (int i = 0; i < numChars; i++) {
+                charBrightnesses[i] = cache.charsBrightnesses().computeIfAbsent(new BrightnessCache.CharKey(font,
+                        sortedChars[i], BrightnessImgCharMatcher.NUM_OF_PIXELS_TO_RENDER_CHAR),
+                        key -> BrightnessImgCharMatcher.calculateCharBrightness(key.c(), key.font()));
+            }
+            double minBrightness = Arrays.stream(charBrightnesses).min().getAsDouble();
+            double maxBrightness = Arrays.stream(charBrightnesses).max().getAsDouble();
+            Integer[] order = new Integer[numChars];
+            for (int i = 0; i < numChars; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (first, second) -> Double.compare(charBrightnesses[first],
+                    charBrightnesses[second]));
+            chars = new char[numChars];
+            brightnesses = new double[numChars];
+            masks = new long[numChars];
+            for (int i = 0; i < numChars; i++) {
+                chars[i] = sortedChars[order[i]];
+                brightnesses[i] = maxBrightness - minBrightness == 0 ? charBrightnesses[order[i]] :
+                        (charBrightnesses[order[i]] - minBrightness) / (maxBrightness - minBrightness);
+                masks[i] = mask(CharRenderer.getImg(chars[i],
+                        BrightnessImgCharMatcher.NUM_OF_PIXELS_TO_RENDER_CHAR, font));
+            }
+        }
+
+        /**
+         * Packs a glyph into 8x8 bits, row after row from the most significant bit - a cell is set when at
+         * least half of its pixels are bright
+         */
+        private long mask(boolean[][] glyph) {
+            long mask = 0;
+            for (int u = 0; u < CELLS; u++) {
+                for (int v = 0; v < CELLS; v++) {
+                    int brightPixels = 0;
+                    for (int y = u * GLYPH_PIXELS_PER_CELL; y < (u + 1) * GLYPH_PIXELS_PER_CELL; y++) {
+                        for (int x = v * GLYPH_PIXELS_PER_CELL; x < (v + 1) * GLYPH_PIXELS_PER_CELL; x++) {
+                            if (glyph[y][x]) {
+                                brightPixels++;
+                            }
+                        }
+                    }
+                    mask = (mask << 1) | (brightPixels >= MIN_BRIGHT_PIXELS_IN_CELL ? 1 : 0);
+                }
+            }
+            return mask;
+        }
+
+        /**
+         *
+         * @param cellBrightnesses -> the brightnesses of the cells of a sub image
+         * @return the char of the smallest distance to the sub image
+         */
+        char closestChar(double[] cellBrightnesses) {
+            double sum = 0;
+            double min = Double.MAX_VALUE;
+            double max = -Double.MAX_VALUE;
+            for (double cell : cellBrightnesses) {
+                sum += cell;
+                min = Math.min(min, cell);
+                max = Math.max(max, cell);
+            }
+            double brightness = sum / cellBrightnesses.length;
+            long pattern = 0;
+            for (double cell : cellBrightnesses) {
+                pattern = (pattern << 1) | (cell > brightness ? 1 : 0);
+            }
+            double shapeWeight = (max - min) / (CELLS * CELLS);
+            int start = Arrays.binarySearch(brightnesses, brightness);
+            if (start < 0) {
+                start = Math.min(-start - 1, brightnesses.length - 1);
+            }
+            int best = start;
+            double bestDistance = distance(start, brightness, pattern, shapeWeight);
+            // the brightness difference only grows away from start, and bounds the distance from below
+            for (int i = start + 1; i < brightnesses.length && brightnesses[i] - brightness < bestDistance; i++) {
+                double distance = distance(i, brightness, pattern, shapeWeight);
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = i;
+                }
+            }
+            for (int i = start - 1; i >= 0 && brightness - brightnesses[i] < bestDistance; i--) {
+                double distance = distance(i, brightness, pattern, shapeWeight);
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = i;
+                }
+            }
+            return chars[best];
+        }
+
+        private double distance(int index, double brightness, long pattern, double shapeWeight) {
+            return Math.abs(brightnesses[index] - brightness) +
+                    shapeWeight * Long.bitCount(pattern ^ masks[index]);
+        }
+    }
+}
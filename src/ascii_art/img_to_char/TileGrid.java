@@ -0,0 +1,85 @@
+package ascii_art.img_to_char;
+
+import image.Image;
+import java.awt.*;
+
+/**
+ * The sub images a matcher samples, as a grid of equal rectangles in image coordinates. The tiles may start
+ * and end inside pixels - a pixel that a tile covers in part counts in its mean with the covered fraction
+ * of its area.
+ * @param rows -> number of rows of tiles
+ * @param cols -> number of tiles in a row
+ * @param top -> the first row of the grid, in pixels
+ * @param left -> the first column of the grid, in pixels
+ * @param tileHeight -> the height of a tile, in pixels
+ * @param tileWidth -> the width of a tile, in pixels
+ */
+record TileGrid(int rows, int cols, double top, double left, double tileHeight, double tileWidth) {
+
+    /**
+     * The original grid of the matchers: square tiles of a whole number of pixels from the top left corner
+     * of the (padded) image, the pixels that don't fill a whole tile at the right and the bottom being left out
+     * @param img -> the image to sample
+     * @param numCharsInRow -> number of tiles in a row, at most the width of the image
+     */
+    static TileGrid squares(Image img, int numCharsInRow) {
+        int subImageSize = img.getWidth() / numCharsInRow;
+        return new TileGrid(img.getHeight() / subImageSize, numCharsInRow, 0, 0, subImageSize, subImageSize);
+    }
+
+    /**
+     * A grid that covers exactly the content of the image (see Image.getContentBounds), at any number of
+     * tiles in a row. The tiles are as high as their width times the aspect ratio of the cells the chars are
+     * shown in, up to rounding the number of rows to a whole number, so the ASCII image keeps the proportions
+     * of the image.
+     * @param img -> the image to sample
+     * @param numCharsInRow -> number of tiles in a row, positive
+     * @param cellAspectRatio -> the height of a cell of the output divided by its width, positive
+     * @throws IllegalArgumentException if numCharsInRow or cellAspectRatio is not positive
+     */
+    static TileGrid fit(Image img, int numCharsInRow, double cellAspectRatio) {
+        if (numCharsInRow <= 0 || !(cellAspectRatio > 0)) {
+            throw new IllegalArgumentException(String.format("Can not fit %d chars of aspect ratio %f in a row",
+                    numCharsInRow, cellAspectRatio));
+        }
+        Rectangle content = img.getContentBounds();
+        double tileWidth = (double) content.width / numCharsInRow;
+        int rows = (int) Math.max(1, Math.round(content.height / (tileWidth * cellAspectRatio)));
+        return new TileGrid(rows, numCharsInRow, content.y, content.x, (double) content.height / rows,
+                tileWidth);
+    }
+
+    /**
+     *
+     * @return the size of the tiles if this grid is a grid of squares (see squares), or 0 otherwise
+     */
+    int squareSize() {
+        int size = (int) tileWidth;
+        return top == 0 && left == 0 && size == tileWidth && size == tileHeight ? size : 0;
+    }
+
+    /**
+     * @param parts -> the number of parts to split each side of a tile into
+     * @return a grid of the parts of the tiles of this grid, the part (u, v) of the tile (row, col) being in
+     * row row * parts + u and column col * parts + v
+     */
+    TileGrid split(int parts) {
+        return new TileGrid(rows * parts, cols * parts, top, left, tileHeight / parts, tileWidth / parts);
+    }
+
+    /**
+     *
+     * @return the first row of the tiles of the given row, in pixels
+     */
+    double tileTop(int row) {
+        return top + row * tileHeight;
+    }
+
+    /**
+     *
+     * @return the first column of the tiles of the given column, in pixels
+     */
+    double tileLeft(int col) {
+        return left + col * tileWidth;
+    }
+}
@@ -0,0 +1,89 @@
+package ascii_art.img_to_char;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The luminance kernel on the Vector API: a vector of pixels is split into its channels with int lanes, and the
+ * luminances are stored and summed with double lanes - as many int lanes as double lanes, so the ints take half
+ * the bits of the preferred double vector.
+ * In fixed point the luminances are weighted in the int lanes, and converted once. With the double formula every
+ * channel is converted and weighted like the scalar formula, in the same order and without fused multiply-adds,
+ * so the luminance of a pixel is the same; only sums differ in the last bits, since the lanes are added apart.
+ * Loaded by LuminanceKernel by name, only when jdk.incubator.vector is in the boot layer.
+ */
+class VectorLuminanceKernel extends LuminanceKernel {
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS =
+            VectorSpecies.of(int.class, VectorShape.forBitSize(DOUBLES.vectorBitSize() / 2));
+
+    VectorLuminanceKernel(Arithmetic arithmetic) {
+        super(arithmetic);
+    }
+
+    @Override
+    public boolean isVector() {
+        return true;
+    }
+
+    @Override
+    public void luminanceRow(int[] rgb, int offset, int length, double[] luminances) {
+        int bound = INTS.loopBound(length);
+        int i = 0;
+        if (arithmetic() == Arithmetic.FIXED_POINT) {
+            for (; i < bound; i += INTS.length()) {
+                IntVector pixels = IntVector.fromArray(INTS, rgb, offset + i);
+                IntVector luminance = channel(pixels, 16).mul(RED_WEIGHT)
+                        .add(channel(pixels, 8).mul(GREEN_WEIGHT))
+                        .add(channel(pixels, 0).mul(BLUE_WEIGHT));
+                toDoubles(luminance).intoArray(luminances, i);
+            }
+            for (; i < length; i++) {
+                luminances[i] = fixedLuminance(rgb[offset + i]);
+            }
+        } else {
+            for (; i < bound; i += INTS.length()) {
+                IntVector pixels = IntVector.fromArray(INTS, rgb, offset + i);
+                toDoubles(channel(pixels, 16)).mul(RED)
+                        .add(toDoubles(channel(pixels, 8)).mul(GREEN))
+                        .add(toDoubles(channel(pixels, 0)).mul(BLUE))
+                        .intoArray(luminances, i);
+            }
+            for (; i < length; i++) {
+                luminances[i] = doubleLuminance(rgb[offset + i]);
+            }
+        }
+    }
+
+    @Override
+    public double sum(double[] luminances, int from, int to) {
+        int bound = from + DOUBLES.loopBound(to - from);
+        DoubleVector sums = DoubleVector.zero(DOUBLES);
+        int i = from;
+        for (; i < bound; i += DOUBLES.length()) {
+            sums = sums.add(DoubleVector.fromArray(DOUBLES, luminances, i));
+        }
+        double sum = sums.reduceLanes(VectorOperators.ADD);
+        for (; i < to; i++) {
+            sum += luminances[i];
+        }
+        return sum;
+    }
+
+    /**
+     *
+     * @param pixels -> packed RGB values
+     * @param shift -> 16 for red, 8 for green, 0 for blue
+     * @return the values of the channel of the pixels
+     */
+    private static IntVector channel(IntVector pixels, int shift) {
+        return pixels.lanewise(VectorOperators.ASHR, shift).and(0xFF);
+    }
+
+    private static DoubleVector toDoubles(IntVector ints) {
+        return (DoubleVector) ints.convertShape(VectorOperators.I2D, DOUBLES, 0);
+    }
+}
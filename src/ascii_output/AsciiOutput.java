@@ -10,4 +10,13 @@ public interface AsciiOutput {
      * Output the specified 2D array of chars
      */
     void output(char[][] chars);
+
+    /**
+     * Chars are shown in cells that are usually not square, so an image is converted with sub images of the
+     * same proportions as the cells to keep its own proportions
+     * @return the height of the cell of a char in this output divided by its width
+     */
+    default double cellAspectRatio() {
+        return 1.0;
+    }
 }
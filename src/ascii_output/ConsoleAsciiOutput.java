@@ -1,16 +1,146 @@
 package ascii_output;
 
+import metrics.PipelineMetrics;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.logging.Logger;
+
 /**
  * Output a 2D array of chars to the console.
+ * The whole frame (including the space after every char) is assembled in a buffer that is kept between
+ * frames, and is written to the standard output in a single write, encoded with the charset of System.out.
  * @author Dan Nirel
  */public class ConsoleAsciiOutput implements AsciiOutput{
+    private static final String CURSOR_HOME = "\033[H";
+    private static final String CLEAR_TO_END = "\033[J";
+    private static final double TERMINAL_CELL_ASPECT_RATIO = 2.0; // terminal cells are about twice as high
+    private static final FileChannel STDOUT = new FileOutputStream(FileDescriptor.out).getChannel();
+    // the encoding of the standard output since Java 19, and before that on a Windows console
+    private static final String[] STDOUT_ENCODING_PROPERTIES = {"stdout.encoding", "sun.stdout.encoding"};
+
+    private final boolean redrawInPlace;
+    private final CharsetEncoder encoder = stdoutCharset().newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private char[] frame = new char[0];
+    private ByteBuffer bytes = ByteBuffer.allocate(0);
+
+    public ConsoleAsciiOutput() {
+        this(false);
+    }
+
+    /**
+     *
+     * @param redrawInPlace -> if true, every frame moves the cursor to the top of the terminal (with ANSI
+     *                      escape codes) and overwrites the previous frame instead of scrolling
+     */
+    public ConsoleAsciiOutput(boolean redrawInPlace) {
+        this.redrawInPlace = redrawInPlace;
+    }
+
+    /**
+     * The frames are written next to what System.out prints, so they are encoded the same. PrintStream.charset
+     * only exists since Java 18, so it's looked up reflectively, falling back to the encoding properties of
+     * the standard output and then to the default charset.
+     * @return the charset System.out encodes with
+     */
+    private static Charset stdoutCharset() {
+        try {
+            return (Charset) PrintStream.class.getMethod("charset").invoke(System.out);
+        } catch (ReflectiveOperationException e) {
+            // an older JVM
+        }
+        for (String property : STDOUT_ENCODING_PROPERTIES) {
+            String encoding = System.getProperty(property);
+            try {
+                if (encoding != null && Charset.isSupported(encoding)) {
+                    return Charset.forName(encoding);
+                }
+            } catch (IllegalCharsetNameException e) {
+                // try the next property
+            }
+        }
+        return Charset.defaultCharset();
+    }
+
+    /**
+     * Every char is followed by a space, so it takes two terminal cells
+     */
+    @Override
+    public double cellAspectRatio() {
+        return TERMINAL_CELL_ASPECT_RATIO / 2;
+    }
+
     @Override
-    public void output(char[][] chars) {
+    @SuppressWarnings("try")
+    public synchronized void output(char[][] chars) {
+        try (PipelineMetrics.Timer timer = PipelineMetrics.start(PipelineMetrics.Stage.OUTPUT)) {
+            writeFrame(chars);
+        }
+    }
+
+    /**
+     * Assembles the frame of the chars in the buffer and writes it
+     */
+    private void writeFrame(char[][] chars) {
+        String lineSeparator = System.lineSeparator();
+        int frameLength = redrawInPlace ? CURSOR_HOME.length() + CLEAR_TO_END.length() : 0;
+        for (char[] row : chars) {
+            frameLength += row.length * 2 + lineSeparator.length();
+        }
+        if (frame.length < frameLength) {
+            frame = new char[frameLength];
+        }
+        int position = 0;
+        if (redrawInPlace) {
+            position = append(CURSOR_HOME, position);
+        }
         for (int y = 0; y < chars.length ; y++) {
             for (int x = 0; x < chars[y].length; x++) {
-                System.out.print(chars[y][x] + " ");
+                frame[position++] = chars[y][x];
+                frame[position++] = ' ';
+            }
+            position = append(lineSeparator, position);
+        }
+        if (redrawInPlace) {
+            position = append(CLEAR_TO_END, position);
+        }
+        write(position);
+    }
+
+    private int append(String s, int position) {
+        s.getChars(0, s.length(), frame, position);
+        return position + s.length();
+    }
+
+    /**
+     * Encodes the first length chars of the frame and writes them to the standard output at once
+     */
+    private void write(int length) {
+        int maxBytes = (int) Math.ceil(length * (double) encoder.maxBytesPerChar());
+        if (bytes.capacity() < maxBytes) {
+            bytes = ByteBuffer.allocate(maxBytes);
+        }
+        bytes.clear();
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(frame, 0, length), bytes, true);
+        encoder.flush(bytes);
+        bytes.flip();
+        System.out.flush(); // whatever was printed before the frame is shown before it
+        try {
+            while (bytes.hasRemaining()) {
+                STDOUT.write(bytes);
             }
-            System.out.println();
+        } catch (IOException e) {
+            Logger.getGlobal().severe("Failed to write to the console");
         }
     }
 }
@@ -0,0 +1,150 @@
+package ascii_output;
+
+import metrics.PipelineMetrics;
+import java.io.*;
+
+/**
+ * Output a sequence of 2D arrays of chars (the frames of an animation) to a compact binary file.
+ * Only the cells that changed since the previous frame are stored, as runs of consecutive changed cells.
+ * A frame is stored whole (a key frame) when it's the first one, when its dimensions change, or when that
+ * is smaller than storing its changes. The file is read back with DeltaFrameReader.
+ * Chars are stored as single bytes, which is enough for the printable ASCII chars the matcher uses.
+ * File layout: MAGIC, VERSION, then for every frame either KEY_FRAME, rows, cols and rows*cols chars, or
+ * DELTA_FRAME, the number of runs and for each run the number of unchanged cells before it (varints), its
+ * length (varint) and its chars. The file ends with END.
+ */
+public class DeltaFrameOutput implements AsciiOutput, Closeable {
+    static final int MAGIC = 0x41444C54; // "ADLT"
+    static final int VERSION = 1;
+    static final int KEY_FRAME = 0;
+    static final int DELTA_FRAME = 1;
+    static final int END = 2;
+    private static final int KEY_FRAME_HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int MAX_MERGED_GAP = 3; // unchanged cells cheaper to store than a new run header
+
+    private final String filename;
+    private final DataOutputStream out;
+    private char[] previous;
+    private int rows = -1;
+    private int cols = -1;
+    private final ByteArrayOutputStream deltaBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream delta = new DataOutputStream(deltaBuffer);
+
+    /**
+     *
+     * @param filename -> the file to write
+     * @throws IOException in case the file couldn't be created
+     */
+    public DeltaFrameOutput(String filename) throws IOException {
+        this.filename = filename;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    /**
+     * Appends a frame to the file
+     * @throws UncheckedIOException in case the frame couldn't be written, since the frames after it couldn't be
+     * read back without it
+     */
+    @Override
+    @SuppressWarnings("try")
+    public void output(char[][] chars) {
+        try (PipelineMetrics.Timer timer = PipelineMetrics.start(PipelineMetrics.Stage.OUTPUT)) {
+            int frameRows = chars.length;
+            int frameCols = frameRows == 0 ? 0 : chars[0].length;
+            if (frameRows != rows || frameCols != cols) {
+                rows = frameRows;
+                cols = frameCols;
+                previous = new char[rows * cols];
+                writeKeyFrame(chars);
+                return;
+            }
+            int numRuns = encodeDelta(chars);
+            if (deltaBuffer.size() >= KEY_FRAME_HEADER_SIZE + rows * cols) {
+                writeKeyFrame(chars);
+            } else {
+                out.writeByte(DELTA_FRAME);
+                writeVarInt(out, numRuns);
+                deltaBuffer.writeTo(out);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(String.format("Failed to write to \"%s\"", filename), e);
+        }
+    }
+
+    private void writeKeyFrame(char[][] chars) throws IOException {
+        out.writeByte(KEY_FRAME);
+        out.writeInt(rows);
+        out.writeInt(cols);
+        for (int y = 0; y < rows; y++) {
+            for (int x = 0; x < cols; x++) {
+                out.writeByte(chars[y][x]);
+                previous[y * cols + x] = chars[y][x];
+            }
+        }
+    }
+
+    /**
+     * Encodes the runs of changed cells into the delta buffer, and updates the previous frame
+     * @return the number of runs
+     */
+    private int encodeDelta(char[][] chars) throws IOException {
+        deltaBuffer.reset();
+        int numRuns = 0;
+        int cells = rows * cols;
+        int runEnd = 0;
+        int cell = 0;
+        while (cell < cells) {
+            if (!changed(chars, cell)) {
+                cell++;
+                continue;
+            }
+            int runStart = cell;
+            int lastChanged = cell;
+            while (cell < cells && cell - lastChanged <= MAX_MERGED_GAP) {
+                if (changed(chars, cell)) {
+                    lastChanged = cell;
+                }
+                cell++;
+            }
+            int length = lastChanged + 1 - runStart;
+            writeVarInt(delta, runStart - runEnd);
+            writeVarInt(delta, length);
+            for (int i = runStart; i <= lastChanged; i++) {
+                char c = chars[i / cols][i % cols];
+                delta.writeByte(c);
+                previous[i] = c;
+            }
+            runEnd = lastChanged + 1;
+            cell = runEnd;
+            numRuns++;
+        }
+        delta.flush();
+        return numRuns;
+    }
+
+    private boolean changed(char[][] chars, int cell) {
+        return chars[cell / cols][cell % cols] != previous[cell];
+    }
+
+    /**
+     * Writes a non-negative int in 7 bit groups, so small numbers take a single byte
+     */
+    static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * Marks the end of the animation and closes the file
+     */
+    @Override
+    public void close() throws IOException {
+        out.writeByte(END);
+        out.close();
+    }
+}
@@ -0,0 +1,83 @@
+package ascii_output;
+
+import java.io.*;
+
+/**
+ * Reads back the frames of a file written by DeltaFrameOutput, applying the changes of every frame to the
+ * previous one.
+ */
+public class DeltaFrameReader implements Closeable {
+    private final DataInputStream in;
+    private char[][] frame;
+    private boolean ended = false;
+
+    /**
+     *
+     * @param filename -> a file written by DeltaFrameOutput
+     * @throws IOException in case the file couldn't be read or is not an animation file
+     */
+    public DeltaFrameReader(String filename) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
+        if (in.readInt() != DeltaFrameOutput.MAGIC || in.readInt() != DeltaFrameOutput.VERSION) {
+            in.close();
+            throw new IOException("Not an ASCII animation file: " + filename);
+        }
+    }
+
+    /**
+     * Reads the next frame. The returned array is reused for the following frames, so it must be used
+     * (e.g. printed) before the next call and must not be modified.
+     * @return the next frame, or null if there are no more frames
+     * @throws IOException in case the file couldn't be read
+     */
+    public char[][] next() throws IOException {
+        if (ended) {
+            return null;
+        }
+        int type = in.readUnsignedByte();
+        if (type == DeltaFrameOutput.KEY_FRAME) {
+            int rows = in.readInt();
+            int cols = in.readInt();
+            frame = new char[rows][cols];
+            for (int y = 0; y < rows; y++) {
+                for (int x = 0; x < cols; x++) {
+                    frame[y][x] = (char) in.readUnsignedByte();
+                }
+            }
+        } else if (type == DeltaFrameOutput.DELTA_FRAME) {
+            int cols = frame.length == 0 ? 0 : frame[0].length;
+            int numRuns = readVarInt(in);
+            int cell = 0;
+            for (int run = 0; run < numRuns; run++) {
+                cell += readVarInt(in);
+                int length = readVarInt(in);
+                for (int i = 0; i < length; i++, cell++) {
+                    frame[cell / cols][cell % cols] = (char) in.readUnsignedByte();
+                }
+            }
+        } else {
+            ended = true;
+            return null;
+        }
+        return frame;
+    }
+
+    /**
+     * Reads an int written by DeltaFrameOutput.writeVarInt
+     */
+    static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
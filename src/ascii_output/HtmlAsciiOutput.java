@@ -1,63 +1,354 @@
 package ascii_output;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import metrics.PipelineMetrics;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.file.StandardOpenOption.*;
 
 /**
  * Output a 2D array of chars to an HTML file viewable in a web browser.
+ * Each row is escaped into a reused char buffer and written at once, encoded as UTF-8 into a large byte
+ * buffer that is written to the file channel only when it fills up. The file may also be gzip compressed.
+ * The chars may also be colored, each with the mean color of its sub image. The colors are quantized to a
+ * number of levels per channel, and a run of adjacent chars of the same row with the same quantized color (spaces
+ * match any color, since they show none) is written as a single span, so a colored page is only a few times
+ * larger than a monochrome one.
  * @author Dan Nirel
  */
 public class HtmlAsciiOutput implements AsciiOutput {
     private static final double BASE_LINE_SPACING = 0.8;
     private static final double BASE_FONT_SIZE = 150.0;
+    private static final double LETTER_SPACING = 0.15;
+    private static final double MONOSPACE_ADVANCE = 0.6; // the width of a char of a monospace font, in em
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+    private static final int MAX_ESCAPE_LENGTH = 5;
+    private static final String GZIP_SUFFIX = ".gz";
+    private static final int DEFAULT_COLOR_LEVELS = 4;
+    private static final int MAX_COLOR_LEVELS = 256;
+    private static final String SPAN_START = "<span style=color:#";
+    private static final String SPAN_END = "</span>";
+    private static final int MAX_SPAN_LENGTH = SPAN_START.length() + "rrggbb>".length() + SPAN_END.length();
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final int SHORT_HEX_FACTOR = 17; // 0xff / 0xf, a channel that is a multiple has a 1 digit form
 
     private final String fontName;
     private final String filename;
+    private final int bufferSize;
+    private final boolean compress;
+    private final int colorLevels;
 
+    /**
+     * The output is gzip compressed if the file name ends with .gz (e.g. out.html.gz)
+     */
     public HtmlAsciiOutput(String filename, String fontName) {
+        this(filename, fontName, DEFAULT_BUFFER_SIZE, filename.endsWith(GZIP_SUFFIX));
+    }
+
+    /**
+     * Like HtmlAsciiOutput(filename, fontName), quantizing the colors of a colored page to the given levels
+     */
+    public HtmlAsciiOutput(String filename, String fontName, int colorLevels) {
+        this(filename, fontName, DEFAULT_BUFFER_SIZE, filename.endsWith(GZIP_SUFFIX), colorLevels);
+    }
+
+    /**
+     *
+     * @param filename -> the file to write
+     * @param fontName -> the font of the chars in the page
+     * @param bufferSize -> the size in bytes of the buffer the page is encoded into before it is written
+     * @param compress -> whether to gzip the page
+     */
+    public HtmlAsciiOutput(String filename, String fontName, int bufferSize, boolean compress) {
+        this(filename, fontName, bufferSize, compress, DEFAULT_COLOR_LEVELS);
+    }
+
+    /**
+     *
+     * @param filename -> the file to write
+     * @param fontName -> the font of the chars in the page
+     * @param bufferSize -> the size in bytes of the buffer the page is encoded into before it is written
+     * @param compress -> whether to gzip the page
+     * @param colorLevels -> number of values each color channel is quantized to in a colored page, between 2
+     *                    and 256. Fewer levels make longer runs of the same color, so a smaller page.
+     */
+    public HtmlAsciiOutput(String filename, String fontName, int bufferSize, boolean compress, int colorLevels) {
+        if (colorLevels < 2 || colorLevels > MAX_COLOR_LEVELS) {
+            throw new IllegalArgumentException("Color levels must be between 2 and 256: " + colorLevels);
+        }
         this.fontName = fontName;
         this.filename = filename;
+        this.bufferSize = bufferSize;
+        this.compress = compress;
+        this.colorLevels = colorLevels;
+    }
+
+    /**
+     * A line is BASE_LINE_SPACING em high, and a char of a monospace font is about MONOSPACE_ADVANCE em wide
+     * plus the letter spacing
+     */
+    @Override
+    public double cellAspectRatio() {
+        return BASE_LINE_SPACING / (MONOSPACE_ADVANCE + LETTER_SPACING);
     }
 
     @Override
     public void output(char[][] chars) {
-        try(BufferedWriter writer = new BufferedWriter(new FileWriter(filename))) {
-            writer.write(String.format(
-                "<!DOCTYPE html>\n"+
-                "<html>\n"+
-                "<body style=\""+
-                    "\tCOLOR:#000000;"+
-                    "\tTEXT-ALIGN:center;"+
-                    "\tFONT-SIZE:1px;\">\n"+
-                "<p style=\""+
-                    "\twhite-space:pre;"+
-                    "\tFONT-FAMILY:%s;"+
-                    "\tFONT-SIZE:%frem;"+
-                    "\tLETTER-SPACING:0.15em;"+
-                    "\tLINE-HEIGHT:%fem;\">\n",
-                    fontName, BASE_FONT_SIZE/chars[0].length, BASE_LINE_SPACING));
-
-            for(int y = 0 ; y < chars.length ; y++) {
-                for (int x = 0; x < chars[y].length ; x++) {
-                    String htmlRep;
-                    switch(chars[y][x]) {
-                        case '<': htmlRep = "&lt;";  break;
-                        case '>': htmlRep = "&gt;";  break;
-                        case '&': htmlRep = "&amp;"; break;
-                        default:  htmlRep = String.valueOf(chars[y][x]);
+        output(chars, null);
+    }
+
+    /**
+     * Output the chars, each in the given color
+     * @param chars -> the chars of the page
+     * @param colors -> the packed RGB value of each char, or null for a monochrome page
+     */
+    public void output(char[][] chars, int[][] colors) {
+        try {
+            writeFile(chars, colors);
+        } catch(IOException e) {
+            Logger.getGlobal().severe(String.format("Failed to write to \"%s\"", filename));
+        }
+    }
+
+    /**
+     * Like output, but lets the caller handle a failure to write the file
+     * @param chars -> the chars of the page
+     * @param colors -> the packed RGB value of each char, or null for a monochrome page
+     * @throws IOException in case the file couldn't be written
+     */
+    @SuppressWarnings("try")
+    public void writeFile(char[][] chars, int[][] colors) throws IOException {
+        try (PipelineMetrics.Timer timer = PipelineMetrics.start(PipelineMetrics.Stage.OUTPUT);
+             FileChannel file = FileChannel.open(Path.of(filename), CREATE, WRITE, TRUNCATE_EXISTING);
+             WritableByteChannel channel = compress ?
+                     Channels.newChannel(new GZIPOutputStream(Channels.newOutputStream(file), bufferSize)) :
+                     file) {
+            write(chars, colors, channel);
+        }
+    }
+
+    /**
+     * Writes the HTML page of the chars to a channel instead of the file, e.g. to answer an HTTP request.
+     * The channel is not closed.
+     * @param chars -> the chars of the page
+     * @param channel -> the channel to write to
+     * @throws IOException in case the channel couldn't be written
+     */
+    public void write(char[][] chars, WritableByteChannel channel) throws IOException {
+        write(chars, null, channel);
+    }
+
+    /**
+     * Writes the HTML page of the chars to a channel, each char in the given color.
+     * The channel is not closed.
+     * @param chars -> the chars of the page
+     * @param colors -> the packed RGB value of each char, or null for a monochrome page
+     * @param channel -> the channel to write to
+     * @throws IOException in case the channel couldn't be written
+     */
+    public void write(char[][] chars, int[][] colors, WritableByteChannel channel) throws IOException {
+        Utf8ChannelWriter writer = new Utf8ChannelWriter(channel, bufferSize);
+        writer.write(String.format(
+            "<!DOCTYPE html>\n"+
+            "<html>\n"+
+            "<body style=\""+
+                "\tCOLOR:#000000;"+
+                "\tTEXT-ALIGN:center;"+
+                "\tFONT-SIZE:1px;\">\n"+
+            "<p style=\""+
+                "\twhite-space:pre;"+
+                "\tFONT-FAMILY:%s;"+
+                "\tFONT-SIZE:%frem;"+
+                "\tLETTER-SPACING:%sem;"+
+                "\tLINE-HEIGHT:%fem;\">\n",
+                fontName, BASE_FONT_SIZE/chars[0].length, LETTER_SPACING, BASE_LINE_SPACING));
+
+        String lineSeparator = System.lineSeparator();
+        char[] rowBuffer = new char[0];
+        for(int y = 0 ; y < chars.length ; y++) {
+            int maxCellLength = colors == null ? MAX_ESCAPE_LENGTH :
+                    MAX_ESCAPE_LENGTH + MAX_SPAN_LENGTH;
+            int maxRowLength = chars[y].length * maxCellLength + lineSeparator.length();
+            if (rowBuffer.length < maxRowLength) {
+                rowBuffer = new char[maxRowLength];
+            }
+            int length = colors == null ? escapeRow(chars[y], rowBuffer) :
+                    escapeColoredRow(chars[y], colors[y], rowBuffer);
+            lineSeparator.getChars(0, lineSeparator.length(), rowBuffer, length);
+            writer.write(rowBuffer, 0, length + lineSeparator.length());
+        }
+        writer.write(
+            "</p>\n"+
+            "</body>\n"+
+            "</html>\n");
+        writer.flush();
+    }
+
+    /**
+     * Writes the HTML representation of a row of chars into a buffer
+     * @return the length of the representation
+     */
+    private static int escapeRow(char[] row, char[] buffer) {
+        int length = 0;
+        for (char c : row) {
+            length = escape(c, buffer, length);
+        }
+        return length;
+    }
+
+    /**
+     * Writes the HTML representation of a row of colored chars into a buffer, a span for every run of chars
+     * with the same quantized color
+     * @return the length of the representation
+     */
+    private int escapeColoredRow(char[] row, int[] rowColors, char[] buffer) {
+        int length = 0;
+        int spanColor = -1;
+        for (int x = 0; x < row.length; x++) {
+            if (row[x] != ' ') {
+                int color = quantize(rowColors[x]);
+                if (color != spanColor) {
+                    if (spanColor != -1) {
+                        length = append(SPAN_END, buffer, length);
                     }
-                    writer.write(htmlRep);
+                    length = appendSpanStart(color, buffer, length);
+                    spanColor = color;
                 }
-                writer.newLine();
             }
-            writer.write(
-                "</p>\n"+
-                "</body>\n"+
-                "</html>\n");
-        } catch(IOException e) {
-            Logger.getGlobal().severe(String.format("Failed to write to \"%s\"", filename));
+            length = escape(row[x], buffer, length);
+        }
+        if (spanColor != -1) {
+            length = append(SPAN_END, buffer, length);
+        }
+        return length;
+    }
+
+    /**
+     * Rounds every channel of a color to the closest of colorLevels evenly spaced values
+     * @param rgb -> a packed RGB value
+     * @return the quantized packed RGB value
+     */
+    int quantize(int rgb) {
+        int quantized = 0;
+        for (int shift = 16; shift >= 0; shift -= 8) {
+            int level = (((rgb >> shift) & 0xFF) * (colorLevels - 1) + 127) / 255;
+            quantized |= (level * 255 + (colorLevels - 1) / 2) / (colorLevels - 1) << shift;
+        }
+        return quantized;
+    }
+
+    /**
+     * Writes the start tag of a span of the given color, using the 3 digit form of the color when it has one
+     */
+    private static int appendSpanStart(int rgb, char[] buffer, int position) {
+        position = append(SPAN_START, buffer, position);
+        boolean shortForm = true;
+        for (int shift = 16; shift >= 0; shift -= 8) {
+            shortForm &= ((rgb >> shift) & 0xFF) % SHORT_HEX_FACTOR == 0;
+        }
+        for (int shift = 16; shift >= 0; shift -= 8) {
+            int channel = (rgb >> shift) & 0xFF;
+            if (shortForm) {
+                buffer[position++] = HEX_DIGITS[channel / SHORT_HEX_FACTOR];
+            } else {
+                buffer[position++] = HEX_DIGITS[channel >> 4];
+                buffer[position++] = HEX_DIGITS[channel & 0xF];
+            }
+        }
+        buffer[position++] = '>';
+        return position;
+    }
+
+    private static int append(String s, char[] buffer, int position) {
+        s.getChars(0, s.length(), buffer, position);
+        return position + s.length();
+    }
+
+    /**
+     * Writes the HTML representation of a char into a buffer
+     * @param c -> the char to write
+     * @param buffer -> the buffer to write into
+     * @param position -> the index in the buffer to write at
+     * @return the index right after the written representation
+     */
+    static int escape(char c, char[] buffer, int position) {
+        String htmlRep;
+        switch(c) {
+            case '<': htmlRep = "&lt;";  break;
+            case '>': htmlRep = "&gt;";  break;
+            case '&': htmlRep = "&amp;"; break;
+            default:
+                buffer[position] = c;
+                return position + 1;
+        }
+        htmlRep.getChars(0, htmlRep.length(), buffer, position);
+        return position + htmlRep.length();
+    }
+
+    /**
+     * Encodes chars as UTF-8 into a byte buffer, and writes the buffer to a channel whenever it fills up
+     */
+    static class Utf8ChannelWriter {
+        private final WritableByteChannel channel;
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        private final ByteBuffer bytes;
+
+        Utf8ChannelWriter(WritableByteChannel channel, int bufferSize) {
+            this.channel = channel;
+            bytes = ByteBuffer.allocate(bufferSize);
+        }
+
+        void write(String s) throws IOException {
+            write(CharBuffer.wrap(s));
+        }
+
+        void write(char[] chars, int offset, int length) throws IOException {
+            write(CharBuffer.wrap(chars, offset, length));
+        }
+
+        private void write(CharBuffer chars) throws IOException {
+            while (true) {
+                CoderResult result = encoder.encode(chars, bytes, false);
+                if (result.isOverflow()) {
+                    drain();
+                } else if (result.isUnderflow()) {
+                    return;
+                } else {
+                    result.throwException();
+                }
+            }
+        }
+
+        private void drain() throws IOException {
+            bytes.flip();
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            bytes.clear();
+        }
+
+        /**
+         * Writes whatever is left in the buffer to the channel
+         */
+        void flush() throws IOException {
+            CharBuffer noChars = CharBuffer.allocate(0);
+            while (encoder.encode(noChars, bytes, true).isOverflow()) {
+                drain();
+            }
+            while (encoder.flush(bytes).isOverflow()) {
+                drain();
+            }
+            drain();
         }
     }
 }
@@ -0,0 +1,63 @@
+package ascii_output;
+
+import metrics.PipelineMetrics;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Logger;
+
+/**
+ * Output a 2D array of chars to a plain text file, a row in every line.
+ */
+public class TextAsciiOutput implements AsciiOutput {
+    private final String filename;
+
+    /**
+     *
+     * @param filename -> the file to write
+     */
+    public TextAsciiOutput(String filename) {
+        this.filename = filename;
+    }
+
+    @Override
+    public void output(char[][] chars) {
+        try {
+            writeFile(chars);
+        } catch (IOException e) {
+            Logger.getGlobal().severe(String.format("Failed to write to \"%s\"", filename));
+        }
+    }
+
+    /**
+     * Like output, but lets the caller handle a failure to write the file
+     * @param chars -> the chars to write
+     * @throws IOException in case the file couldn't be written
+     */
+    @SuppressWarnings("try")
+    public void writeFile(char[][] chars) throws IOException {
+        try (PipelineMetrics.Timer timer = PipelineMetrics.start(PipelineMetrics.Stage.OUTPUT);
+             BufferedWriter out = Files.newBufferedWriter(Path.of(filename), StandardCharsets.UTF_8)) {
+            write(chars, out);
+        }
+    }
+
+    /**
+     * Writes the rows of the chars to a writer instead of the file, e.g. to answer an HTTP request.
+     * The writer is not closed.
+     * @param chars -> the chars to write
+     * @param out -> the writer to write to
+     * @throws IOException in case the writer couldn't be written
+     */
+    public static void write(char[][] chars, Writer out) throws IOException {
+        String lineSeparator = System.lineSeparator();
+        for (char[] row : chars) {
+            out.write(row);
+            out.write(lineSeparator);
+        }
+        out.flush();
+    }
+}
@@ -1,10 +1,25 @@
 package image;
 
+import metrics.PipelineMetrics;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.lang.Math.*;
 import static java.lang.Math.log;
@@ -16,50 +31,211 @@ import static java.lang.Math.log;
  */
 class FileImage implements Image {
     private static final Color DEFAULT_COLOR = Color.WHITE;
-    private static int counter = 0;
+    private static final AtomicInteger counter = new AtomicInteger();
     int width;
     int height;
 
+    private final File file; // null if the image was already decoded
+    private final Dimension fileSize; // the dimensions of the image in the file, before subsampling
+    private final int subsampling; // only every subsampling-th pixel of every subsampling-th row is decoded
+    private volatile int[] rgbArray; // decoded the first time the pixels are needed
+    private String contentHash;
+    private final int origWidth;
+    private final int origHeight;
+    private final int leftBound;
+    private final int upperBound;
+    private final int defaultRgb = DEFAULT_COLOR.getRGB();
     private Color[][] pixelArray;
     private final int imageIdentifier;
 
     /**
-     * constructor
+     * constructor. Only the header of the file is read, the pixels are decoded when they are first needed
      * @param filename -> a given file image name
      * @throws IOException in case system couldn't read the file
      */
     public FileImage(String filename) throws IOException {
-        java.awt.image.BufferedImage im = ImageIO.read(new File(filename));
-        int origWidth = im.getWidth(), origHeight = im.getHeight();
-        imageIdentifier = counter++;
+        this(new File(filename), readSize(new File(filename)));
+    }
+
+    /**
+     * constructor of an image whose header was already read
+     * @param file -> a given file image
+     * @param origSize -> the dimensions of the image, as read from its header
+     */
+    FileImage(File file, Dimension origSize) {
+        this(file, origSize, 1, null);
+    }
+
+    /**
+     * constructor
+     * @param im -> an image that is already decoded, e.g. a frame of an animation
+     */
+    public FileImage(BufferedImage im) {
+        this(null, new Dimension(im.getWidth(), im.getHeight()), 1, readRgb(im));
+    }
+
+    private FileImage(File file, Dimension fileSize, int subsampling, int[] rgbArray) {
+        this.file = file;
+        this.fileSize = fileSize;
+        this.subsampling = subsampling;
+        this.rgbArray = rgbArray;
+        origWidth = (fileSize.width + subsampling - 1) / subsampling;
+        origHeight = (fileSize.height + subsampling - 1) / subsampling;
+        imageIdentifier = nextImageIdentifier();
         width = (int) pow(2, ceil(log(origWidth) / log(2)));
         height = (int) pow(2, ceil(log(origHeight) / log(2)));
-        padImage(im, origWidth, origHeight);
+        upperBound = (height - origHeight) / 2;
+        leftBound = (width - origWidth) / 2;
+    }
+
+    /**
+     * Reads the dimensions of an image from the header of its file, without decoding it
+     * @param file -> a given file image
+     * @return the width and height of the image
+     * @throws IOException in case system couldn't read the file or its format is not supported
+     */
+    static Dimension readSize(File file) throws IOException {
+        try (ImageInputStream input = openInput(file)) {
+            ImageReader reader = readerFor(input, file);
+            try {
+                reader.setInput(input, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     *
+     * @param file -> a given file image
+     * @return a stream of the bytes of the file that image readers can read
+     * @throws IOException in case system couldn't open the file
+     */
+    static ImageInputStream openInput(File file) throws IOException {
+        ImageInputStream input = ImageIO.createImageInputStream(file);
+        if (input == null) {
+            throw new IOException("Failed to open " + file);
+        }
+        return input;
     }
 
     /**
-     * This function creates a padding envelope around the image in order to turn it
-     * into an image whose dimensions are powers of 2
-     * @param im -> an image to work on
-     * @param origWidth of the given image
-     * @param origHeight of the given image
+     *
+     * @param input -> the opened file
+     * @param file -> the file, for the error message
+     * @return a reader of the format of the file, that is not yet set to read the input
+     * @throws IOException in case the format of the file is not supported
      */
-    private void padImage(BufferedImage im, int origWidth, int origHeight) {
+    static ImageReader readerFor(ImageInputStream input, File file) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            throw new IOException("Unsupported image format: " + file);
+        }
+        return readers.next();
+    }
 
-        pixelArray = new Color[height][width];
-        int upperBound = (height - origHeight) / 2;
-        int lowerBound = upperBound + origHeight;
-        int leftBound = (width - origWidth) / 2;
-        int rightBound = leftBound + origWidth;
-        for (int i = 0; i < height; i++) {
-            for (int j = 0; j < width; j++) {
-                if ((i >= upperBound && i < lowerBound) && (j >= leftBound && j < rightBound)) {
-                    pixelArray[i][j] = new Color(im.getRGB(j - leftBound, i - upperBound));
-                } else {
-                    pixelArray[i][j] = DEFAULT_COLOR;
+    /**
+     *
+     * @return a number that no other image (of any class in this package) is identified by
+     */
+    static int nextImageIdentifier() {
+        return counter.getAndIncrement();
+    }
+
+    /**
+     *
+     * @param file -> a given file
+     * @return the SHA-256 of the bytes of the file, or null if it can't be read
+     */
+    static String hashFile(File file) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (InputStream in = new DigestInputStream(Files.newInputStream(file.toPath()), digest)) {
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (IOException | NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    private static int[] readRgb(BufferedImage im) {
+        int[] rgb = new int[im.getWidth() * im.getHeight()];
+        im.getRGB(0, 0, im.getWidth(), im.getHeight(), rgb, 0, im.getWidth());
+        return rgb;
+    }
+
+    /**
+     * Decodes the file the first time the pixels are needed
+     * @return the packed RGB values of the original image
+     */
+    private int[] rgb() {
+        int[] rgb = rgbArray;
+        if (rgb == null) {
+            synchronized (this) {
+                if (rgbArray == null) {
+                    rgbArray = decode();
                 }
+                rgb = rgbArray;
             }
         }
+        return rgb;
+    }
+
+    @Override
+    public void load() {
+        rgb();
+    }
+
+    /**
+     * Decodes the file, keeping only the pixels of the subsampling grid - the decoder never stores the
+     * others, so the memory of the image is that of its subsampled size
+     */
+    @SuppressWarnings("try")
+    private int[] decode() {
+        try (PipelineMetrics.Timer timer = PipelineMetrics.start(PipelineMetrics.Stage.DECODE);
+             ImageInputStream input = openInput(file)) {
+            ImageReader reader = readerFor(input, file);
+            try {
+                reader.setInput(input, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                BufferedImage im = reader.read(0, param);
+                if (im.getWidth() != origWidth || im.getHeight() != origHeight) {
+                    throw new IOException("Failed to decode " + file);
+                }
+                return readRgb(im);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The downsampled image is decoded from the file with subsampling, without ever decoding this image.
+     * Its dimensions are exactly those of this image divided by the factor.
+     * @param factor -> a power of 2
+     * @return this image at a lower resolution, or this image if it was not read from a file
+     */
+    @Override
+    public Image downsampled(int factor) {
+        if (factor == 1 || file == null) {
+            return this;
+        }
+        return new FileImage(file, fileSize, subsampling * factor, null);
+    }
+
+    /**
+     *
+     * @param x a row
+     * @param y a column
+     * @return true if the pixel belongs to the original image and not to the padding around it
+     */
+    private boolean isInsideOrigImage(int x, int y) {
+        return x >= upperBound && x < upperBound + origHeight && y >= leftBound && y < leftBound + origWidth;
     }
 
     /**
@@ -88,7 +264,73 @@ class FileImage implements Image {
      */
     @Override
     public Color getPixel(int x, int y) {
-        return pixelArray[x][y];
+        if (pixelArray != null) {
+            return pixelArray[x][y];
+        }
+        return new Color(getRgb(x, y));
+    }
+
+    /**
+     *
+     * @param x a row
+     * @param y a column
+     * @return the packed RGB value of a specific pixel
+     */
+    @Override
+    public int getRgb(int x, int y) {
+        if (!isInsideOrigImage(x, y)) {
+            return defaultRgb;
+        }
+        return rgb()[(x - upperBound) * origWidth + (y - leftBound)];
+    }
+
+    /**
+     * Copies a span of a row of packed RGB values. The part of the span that falls inside the original
+     * image is copied with a single array copy and the rest is filled with the padding color
+     */
+    @Override
+    public void getRgbRow(int row, int fromCol, int[] dst, int dstOffset, int length) {
+        int toCol = fromCol + length;
+        if (row < upperBound || row >= upperBound + origHeight ||
+                toCol <= leftBound || fromCol >= leftBound + origWidth) {
+            Arrays.fill(dst, dstOffset, dstOffset + length, defaultRgb);
+            return;
+        }
+        int copyFrom = max(fromCol, leftBound);
+        int copyTo = min(toCol, leftBound + origWidth);
+        Arrays.fill(dst, dstOffset, dstOffset + copyFrom - fromCol, defaultRgb);
+        System.arraycopy(rgb(), (row - upperBound) * origWidth + (copyFrom - leftBound),
+                dst, dstOffset + copyFrom - fromCol, copyTo - copyFrom);
+        Arrays.fill(dst, dstOffset + copyTo - fromCol, dstOffset + length, defaultRgb);
+    }
+
+    /**
+     * Hands the visitor the rows of the original image straight from the packed array, with no copy
+     */
+    @Override
+    public void visitContentRows(RowVisitor visitor) {
+        int[] rgb = rgb();
+        for (int i = 0; i < origHeight; i++) {
+            visitor.visitRow(i, rgb, i * origWidth);
+        }
+    }
+
+    /**
+     *
+     * @return the part of the image that is not padding
+     */
+    @Override
+    public Rectangle getContentBounds() {
+        return new Rectangle(leftBound, upperBound, origWidth, origHeight);
+    }
+
+    /**
+     *
+     * @return the packed RGB value of the padding pixels
+     */
+    @Override
+    public int getFillRgb() {
+        return defaultRgb;
     }
 
     /**
@@ -101,11 +343,36 @@ class FileImage implements Image {
     }
 
     /**
-     *
+     * The SHA-256 of the file is computed the first time it is asked for
+     * @return the hash of the file the image was read from, or null if it was already decoded or the file
+     *         can't be read anymore
+     */
+    @Override
+    public synchronized String getContentHash() {
+        if (contentHash == null && file != null) {
+            String fileHash = hashFile(file);
+            // a subsampled image has other brightnesses than the full one
+            contentHash = fileHash == null || subsampling == 1 ? fileHash :
+                    fileHash + "-subsampled" + subsampling;
+        }
+        return contentHash;
+    }
+
+    /**
+     * The Color array is only materialized the first time a caller asks for it.
      * @return the pixel array of the image
      */
     @Override
     public Color[][] getPixelArray() {
+        if (pixelArray == null) {
+            Color[][] materialized = new Color[height][width];
+            for (int i = 0; i < height; i++) {
+                for (int j = 0; j < width; j++) {
+                    materialized[i][j] = isInsideOrigImage(i, j) ? new Color(getRgb(i, j)) : DEFAULT_COLOR;
+                }
+            }
+            pixelArray = materialized;
+        }
         return pixelArray;
     }
 }
@@ -1,6 +1,8 @@
 package image;
 
 import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
 
 /**
@@ -9,31 +11,127 @@ import java.io.IOException;
  * @author Dan Nirel
  */
 public interface Image {
+    /**
+     * Images with more pixels than this are streamed by fromFile - a quarter of the heap, counting the
+     * packed pixel and its entry in the brightness index
+     */
+    long DEFAULT_STREAMING_THRESHOLD = Runtime.getRuntime().maxMemory() / 4 / (Integer.BYTES + Double.BYTES);
+
     Color getPixel(int x, int y);
 
     int getWidth();
 
     int getHeight();
 
+    /**
+     *
+     * @param x a row
+     * @param y a column
+     * @return the packed RGB value of a specific pixel
+     */
+    default int getRgb(int x, int y) {
+        return getPixel(x, y).getRGB();
+    }
 
+    /**
+     * Copies a span of packed RGB values from a single row of the image
+     * @param row -> the row to read from
+     * @param fromCol -> the first column of the span
+     * @param dst -> the array the values are copied into
+     * @param dstOffset -> the index in dst of the first copied value
+     * @param length -> the number of values to copy
+     */
+    default void getRgbRow(int row, int fromCol, int[] dst, int dstOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[dstOffset + i] = getRgb(row, fromCol + i);
+        }
+    }
 
+    /**
+     * The padding around the original image is virtual - any pixel outside these bounds has the
+     * fill color. By default the whole image is content.
+     * @return the part of the image that holds actual pixels, x and y being column and row offsets
+     */
+    default Rectangle getContentBounds() {
+        return new Rectangle(0, 0, getWidth(), getHeight());
+    }
+
+    /**
+     *
+     * @return the packed RGB value of every pixel outside the content bounds
+     */
+    default int getFillRgb() {
+        return Color.WHITE.getRGB();
+    }
+
+    /**
+     * Streams the rows of the content of the image (see getContentBounds) in order, from top to bottom,
+     * without copying the image. Row indices passed to the visitor are relative to the content bounds.
+     * @param visitor -> receives each row
+     */
+    default void visitContentRows(RowVisitor visitor) {
+        Rectangle content = getContentBounds();
+        int[] row = new int[content.width];
+        for (int i = 0; i < content.height; i++) {
+            getRgbRow(content.y + i, content.x, row, 0, content.width);
+            visitor.visitRow(i, row, 0);
+        }
+    }
 
     /**
      * Open an image from file. Each dimensions of the returned image is guaranteed
      * to be a power of 2, but the dimensions may be different.
+     * Only the header of the file is read here - the pixels are decoded the first time they are needed, so
+     * an image whose brightnesses are saved on disk is never decoded.
+     * A raw pixel file (named *.raw or starting with its magic number, see RawPixelImage) is not decoded at
+     * all - it is memory mapped, and its pixels are read from the mapping.
      *
      * @param filename a path to an image file on disk
      * @return an object implementing Image if the operation was successful,
      * null otherwise
      */
     static Image fromFile(String filename) {
+        return fromFile(filename, DEFAULT_STREAMING_THRESHOLD);
+    }
+
+    /**
+     * Open an image from file like fromFile(filename), streaming it if it is too large to be kept in memory.
+     * A streamed image is never held in memory at once - it is decoded again, strip after strip, whenever its
+     * pixels are needed. A raw pixel file is never held in memory anyway, and is only marked as streaming
+     * (see isStreaming) above the threshold.
+     *
+     * @param filename a path to an image file on disk
+     * @param streamingThreshold images with more pixels than this are streamed
+     * @return an object implementing Image if the operation was successful,
+     * null otherwise
+     */
+    static Image fromFile(String filename, long streamingThreshold) {
         try {
-            return new FileImage(filename);
+            File file = new File(filename);
+            if (filename.endsWith(RawPixelImage.SUFFIX) || RawPixelImage.isRawPixelFile(file)) {
+                return new RawPixelImage(file, streamingThreshold);
+            }
+            Dimension size = FileImage.readSize(file);
+            if ((long) size.width * size.height > streamingThreshold) {
+                return new StreamingFileImage(file, size, streamingThreshold);
+            }
+            return new FileImage(file, size);
         } catch (IOException ioe) {
             return null;
         }
     }
 
+    /**
+     * Wraps an image that is already decoded, e.g. a frame of an animation. Each dimensions of the returned
+     * image is guaranteed to be a power of 2, like images opened from a file.
+     *
+     * @param im a decoded image
+     * @return an object implementing Image
+     */
+    static Image fromBufferedImage(BufferedImage im) {
+        return new FileImage(im);
+    }
+
     /**
      * Allows iterating the pixels' colors by order (first row, second row and so on).
      *
@@ -45,7 +143,8 @@ public interface Image {
     }
 
     /**
-     *
+     * Note that this copies every pixel of the image, so whenever only a value per sub image is needed
+     * it is better to accumulate it from visitContentRows.
      * @param size -> The dimension of the square matrix which represents a sub image
      * @param height -> height of the orig image
      * @param width -> width of the orig image
@@ -87,6 +186,43 @@ public interface Image {
         return 0;
     }
 
+    /**
+     * Unlike the image identifier, the content hash is the same in every run of the program, so it can key
+     * results that are saved on disk.
+     * @return a hash of the encoded bytes the image was read from, or null if it is unknown
+     */
+    default String getContentHash() {
+        return null;
+    }
+
+    /**
+     * Whenever sub images span many pixels, a lower resolution of the image gives about the same
+     * brightnesses for a fraction of the decoding time and memory.
+     * @param factor -> a power of 2 that divides the width and height of the image
+     * @return the image at a resolution that is lower by the factor (width and height divided by it), or
+     *         this image if it can't be downsampled
+     */
+    default Image downsampled(int factor) {
+        return this;
+    }
+
+    /**
+     * Decodes the pixels now instead of the first time they are read, e.g. on an I/O thread ahead of the
+     * thread that converts the image. An image that is not decoded lazily, or a streaming one that doesn't
+     * keep its pixels, does nothing.
+     */
+    default void load() {
+    }
+
+    /**
+     * A streaming image doesn't keep its pixels - every visit of its rows decodes it again - so it should be
+     * read in as few passes as possible, and nothing the size of the image should be built from it.
+     * @return true if the pixels of the image are decoded again whenever they are read
+     */
+    default boolean isStreaming() {
+        return false;
+    }
+
     default Color[][] getPixelArray() {
         return null;
     }
@@ -0,0 +1,288 @@
+package image;
+
+import metrics.PipelineMetrics;
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static java.lang.Math.*;
+
+/**
+ * An image whose pixels are already decoded in a raw file, e.g. a dump of an upstream pipeline. The file is
+ * memory mapped and the pixels are read straight from the mapping - nothing is decoded or copied into the
+ * heap, so the memory an image takes doesn't grow with its size, and pages the OS already holds are not read
+ * again by following conversions.
+ * A mapping is limited to 2GB, so the file is mapped in segments of whole rows.
+ * File layout: MAGIC, VERSION, the pixel format (GRAY, one byte per pixel, or RGB, three bytes per pixel in
+ * the order red, green, blue), width, height - big endian ints - then width*height pixels row after row.
+ */
+class RawPixelImage implements Image {
+    static final int MAGIC = 0x41524157; // "ARAW"
+    static final int VERSION = 1;
+    static final int GRAY = 1;
+    static final int RGB = 3;
+    static final String SUFFIX = ".raw";
+    private static final int HEADER_SIZE = 5 * Integer.BYTES;
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+    private static final Color DEFAULT_COLOR = Color.WHITE;
+
+    private final File file;
+    private final ByteBuffer[] segments; // shared by the downsampled images of the file
+    private final int rowsPerSegment;
+    private final int bytesPerPixel;
+    private final int fileWidth;
+    private final int subsampling; // only every subsampling-th pixel of every subsampling-th row is read
+    private final long streamingThreshold;
+    private final int origWidth;
+    private final int origHeight;
+    private final int width;
+    private final int height;
+    private final int leftBound;
+    private final int upperBound;
+    private final int defaultRgb = DEFAULT_COLOR.getRGB();
+    private final int imageIdentifier;
+    private String contentHash;
+
+    /**
+     * Maps a raw pixel file
+     * @param file -> a raw pixel file
+     * @param streamingThreshold -> images with more pixels than this are streaming (see isStreaming)
+     * @throws IOException in case the file couldn't be read, or its header is not that of a raw pixel file or
+     *                     doesn't match its size
+     */
+    @SuppressWarnings("try")
+    RawPixelImage(File file, long streamingThreshold) throws IOException {
+        try (PipelineMetrics.Timer timer = PipelineMetrics.start(PipelineMetrics.Stage.DECODE);
+             FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = readStart(channel, HEADER_SIZE);
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a raw pixel file: " + file);
+            }
+            int format = header.getInt();
+            int fileWidth = header.getInt();
+            int fileHeight = header.getInt();
+            long rowBytes = (long) fileWidth * format;
+            if ((format != GRAY && format != RGB) || fileWidth <= 0 || fileHeight <= 0 ||
+                    rowBytes > MAX_SEGMENT_BYTES || channel.size() != HEADER_SIZE + rowBytes * fileHeight) {
+                throw new IOException("Broken raw pixel file: " + file);
+            }
+            // the mappings stay valid after the channel is closed
+            int rowsPerSegment = (int) min(fileHeight, MAX_SEGMENT_BYTES / rowBytes);
+            MappedByteBuffer[] segments = new MappedByteBuffer[(fileHeight + rowsPerSegment - 1) / rowsPerSegment];
+            for (int i = 0; i < segments.length; i++) {
+                int rows = min(rowsPerSegment, fileHeight - i * rowsPerSegment);
+                long position = HEADER_SIZE + i * rowsPerSegment * rowBytes;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, rows * rowBytes);
+            }
+            this.file = file;
+            this.segments = segments;
+            this.rowsPerSegment = rowsPerSegment;
+            bytesPerPixel = format;
+            this.fileWidth = fileWidth;
+            subsampling = 1;
+            this.streamingThreshold = streamingThreshold;
+            origWidth = fileWidth;
+            origHeight = fileHeight;
+        }
+        imageIdentifier = FileImage.nextImageIdentifier();
+        width = (int) pow(2, ceil(log(origWidth) / log(2)));
+        height = (int) pow(2, ceil(log(origHeight) / log(2)));
+        upperBound = (height - origHeight) / 2;
+        leftBound = (width - origWidth) / 2;
+    }
+
+    /**
+     * The image of the same mapping at a lower resolution
+     */
+    private RawPixelImage(RawPixelImage full, int subsampling) {
+        file = full.file;
+        segments = full.segments;
+        rowsPerSegment = full.rowsPerSegment;
+        bytesPerPixel = full.bytesPerPixel;
+        fileWidth = full.fileWidth;
+        this.subsampling = subsampling;
+        streamingThreshold = full.streamingThreshold;
+        origWidth = (full.origWidth + subsampling - 1) / subsampling;
+        origHeight = (full.origHeight + subsampling - 1) / subsampling;
+        imageIdentifier = FileImage.nextImageIdentifier();
+        width = (int) pow(2, ceil(log(origWidth) / log(2)));
+        height = (int) pow(2, ceil(log(origHeight) / log(2)));
+        upperBound = (height - origHeight) / 2;
+        leftBound = (width - origWidth) / 2;
+    }
+
+    /**
+     * Reads the first bytes of a file, without mapping it
+     * @param file -> a given file
+     * @return true if the file starts with MAGIC
+     */
+    static boolean isRawPixelFile(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer magic = readStart(channel, Integer.BYTES);
+            return magic.remaining() == Integer.BYTES && magic.getInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     *
+     * @return the first bytes of the file, ready to be read - less than size if the file is shorter
+     */
+    private static ByteBuffer readStart(FileChannel channel, int size) throws IOException {
+        ByteBuffer start = ByteBuffer.allocate(size);
+        int read = 0;
+        while (start.hasRemaining() && read >= 0) {
+            read = channel.read(start);
+        }
+        return start.flip();
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public Color getPixel(int x, int y) {
+        return new Color(getRgb(x, y));
+    }
+
+    /**
+     *
+     * @param x a row
+     * @param y a column
+     * @return the packed RGB value of a specific pixel, read from the mapping
+     */
+    @Override
+    public int getRgb(int x, int y) {
+        if (x < upperBound || x >= upperBound + origHeight || y < leftBound || y >= leftBound + origWidth) {
+            return defaultRgb;
+        }
+        int fileRow = (x - upperBound) * subsampling;
+        ByteBuffer segment = segments[fileRow / rowsPerSegment];
+        return rgbAt(segment, rowOffset(fileRow) + (y - leftBound) * subsampling * bytesPerPixel);
+    }
+
+    /**
+     * Converts a span of a row from the mapping, and fills the part of the span outside the original image
+     * with the padding color
+     */
+    @Override
+    public void getRgbRow(int row, int fromCol, int[] dst, int dstOffset, int length) {
+        int copyFrom = max(fromCol, leftBound);
+        int copyTo = min(fromCol + length, leftBound + origWidth);
+        Arrays.fill(dst, dstOffset, dstOffset + length, defaultRgb);
+        if (row < upperBound || row >= upperBound + origHeight || copyFrom >= copyTo) {
+            return;
+        }
+        readRow(row - upperBound, copyFrom - leftBound, copyTo - copyFrom, dst, dstOffset + copyFrom - fromCol);
+    }
+
+    /**
+     * Converts the rows of the original image from the mapping one after the other into a single row buffer,
+     * which is the only memory a visit takes
+     */
+    @Override
+    public void visitContentRows(RowVisitor visitor) {
+        int[] rgb = new int[origWidth];
+        for (int i = 0; i < origHeight; i++) {
+            readRow(i, 0, origWidth, rgb, 0);
+            visitor.visitRow(i, rgb, 0);
+        }
+    }
+
+    /**
+     * Converts a span of a row of the original image to packed RGB values
+     * @param origRow -> the row, in the original image
+     * @param origCol -> the first column of the span, in the original image
+     * @param length -> number of pixels in the span
+     * @param dst -> receives the packed RGB values
+     * @param dstOffset -> the index in dst of the first pixel
+     */
+    private void readRow(int origRow, int origCol, int length, int[] dst, int dstOffset) {
+        int fileRow = origRow * subsampling;
+        ByteBuffer segment = segments[fileRow / rowsPerSegment];
+        int offset = rowOffset(fileRow) + origCol * subsampling * bytesPerPixel;
+        int stride = subsampling * bytesPerPixel;
+        for (int i = 0; i < length; i++, offset += stride) {
+            dst[dstOffset + i] = rgbAt(segment, offset);
+        }
+    }
+
+    /**
+     *
+     * @return the index in its segment of the first byte of a row of the file
+     */
+    private int rowOffset(int fileRow) {
+        return (fileRow % rowsPerSegment) * fileWidth * bytesPerPixel;
+    }
+
+    /**
+     *
+     * @return the packed RGB value of the pixel that starts at the given index of a segment
+     */
+    private int rgbAt(ByteBuffer segment, int offset) {
+        if (bytesPerPixel == GRAY) {
+            int gray = segment.get(offset) & 0xFF;
+            return 0xFF000000 | (gray << 16) | (gray << 8) | gray;
+        }
+        return 0xFF000000 | ((segment.get(offset) & 0xFF) << 16) | ((segment.get(offset + 1) & 0xFF) << 8) |
+                (segment.get(offset + 2) & 0xFF);
+    }
+
+    @Override
+    public Rectangle getContentBounds() {
+        return new Rectangle(leftBound, upperBound, origWidth, origHeight);
+    }
+
+    @Override
+    public int getFillRgb() {
+        return defaultRgb;
+    }
+
+    @Override
+    public int getImageIdentifier() {
+        return imageIdentifier;
+    }
+
+    @Override
+    public synchronized String getContentHash() {
+        if (contentHash == null) {
+            String fileHash = FileImage.hashFile(file);
+            // a subsampled image has other brightnesses than the full one
+            contentHash = fileHash == null || subsampling == 1 ? fileHash : fileHash + "-subsampled" + subsampling;
+        }
+        return contentHash;
+    }
+
+    /**
+     * The downsampled image reads every factor-th pixel of the same mapping, so it takes no memory either
+     * @param factor -> a power of 2
+     * @return this image at a lower resolution
+     */
+    @Override
+    public Image downsampled(int factor) {
+        return factor == 1 ? this : new RawPixelImage(this, subsampling * factor);
+    }
+
+    /**
+     * The pixels are not in the heap, but an image that large shouldn't be indexed either, since the
+     * brightness index of an image takes a long per pixel
+     * @return true if the image has more pixels than the streaming threshold it was opened with
+     */
+    @Override
+    public boolean isStreaming() {
+        return (long) origWidth * origHeight > streamingThreshold;
+    }
+}
@@ -0,0 +1,17 @@
+package image;
+
+/**
+ * Receives the rows of an image one after the other, as packed RGB values.
+ * The array handed to the visitor may be the internal storage of the image or a buffer that is reused
+ * for the next row, so it must not be modified or kept after visitRow returns.
+ */
+@FunctionalInterface
+public interface RowVisitor {
+    /**
+     *
+     * @param row -> the index of the row
+     * @param rgb -> an array holding the packed RGB values of the row
+     * @param offset -> the index in rgb of the first pixel of the row
+     */
+    void visitRow(int row, int[] rgb, int offset);
+}
@@ -0,0 +1,215 @@
+package image;
+
+import metrics.PipelineMetrics;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+import static java.lang.Math.*;
+
+/**
+ * An image that is too large to be kept in memory. Its pixels are never stored - every visit of its rows
+ * decodes the file again, one horizontal strip after the other, hands the rows of the strip to the visitor
+ * and drops the strip, so the memory taken by a visit is bounded by the strip size, whatever the size of the
+ * image is.
+ * Strips are read with the source region of an ImageReader. Formats with random access read only the strip,
+ * while formats that are decoded sequentially (e.g. PNG, JPEG) also go over the data before the strip - so
+ * the strips are as tall as the strip budget allows, to read the file as few times as possible.
+ * Reading single pixels is supported but slow, since each read decodes a region of the file.
+ */
+class StreamingFileImage implements Image {
+    private static final Color DEFAULT_COLOR = Color.WHITE;
+    private static final long MIN_STRIP_BYTES = 16L << 20;
+    private static final long STRIP_BYTES =
+            max(MIN_STRIP_BYTES, Runtime.getRuntime().maxMemory() / 16);
+    // a decoded strip holds up to 4 bytes per pixel, and its packed copy another 4
+    private static final int BYTES_PER_STRIP_PIXEL = 2 * Integer.BYTES;
+
+    private final File file;
+    private final long streamingThreshold;
+    private final int origWidth;
+    private final int origHeight;
+    private final int width;
+    private final int height;
+    private final int leftBound;
+    private final int upperBound;
+    private final int defaultRgb = DEFAULT_COLOR.getRGB();
+    private final int imageIdentifier;
+    private String contentHash;
+
+    /**
+     * constructor
+     * @param file -> a given file image
+     * @param origSize -> the dimensions of the image, as read from its header
+     * @param streamingThreshold -> the threshold the image was streamed by (see Image.fromFile)
+     */
+    StreamingFileImage(File file, Dimension origSize, long streamingThreshold) {
+        this.file = file;
+        this.streamingThreshold = streamingThreshold;
+        origWidth = origSize.width;
+        origHeight = origSize.height;
+        imageIdentifier = FileImage.nextImageIdentifier();
+        width = (int) pow(2, ceil(log(origWidth) / log(2)));
+        height = (int) pow(2, ceil(log(origHeight) / log(2)));
+        upperBound = (height - origHeight) / 2;
+        leftBound = (width - origWidth) / 2;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public Color getPixel(int x, int y) {
+        return new Color(getRgb(x, y));
+    }
+
+    @Override
+    public int getRgb(int x, int y) {
+        int[] rgb = new int[1];
+        getRgbRow(x, y, rgb, 0, 1);
+        return rgb[0];
+    }
+
+    /**
+     * Decodes the region of the span that falls inside the original image, and fills the rest with the
+     * padding color
+     */
+    @Override
+    public void getRgbRow(int row, int fromCol, int[] dst, int dstOffset, int length) {
+        int copyFrom = max(fromCol, leftBound);
+        int copyTo = min(fromCol + length, leftBound + origWidth);
+        Arrays.fill(dst, dstOffset, dstOffset + length, defaultRgb);
+        if (row < upperBound || row >= upperBound + origHeight || copyFrom >= copyTo) {
+            return;
+        }
+        int origRow = row - upperBound;
+        int span = copyTo - copyFrom;
+        readStrips(copyFrom - leftBound, span, origRow, origRow + 1, 1, (strip, rows) ->
+                strip.getRGB(0, 0, span, 1, dst, dstOffset + copyFrom - fromCol, span));
+    }
+
+    /**
+     * Decodes the image strip after strip and hands the visitor the rows of every strip
+     */
+    @Override
+    public void visitContentRows(RowVisitor visitor) {
+        long stripPixels = STRIP_BYTES / BYTES_PER_STRIP_PIXEL;
+        int stripRows = (int) max(1, min(origHeight, stripPixels / origWidth));
+        int[] rgb = new int[stripRows * origWidth];
+        int[] top = {0};
+        readStrips(0, origWidth, 0, origHeight, stripRows, (strip, rows) -> {
+            strip.getRGB(0, 0, origWidth, rows, rgb, 0, origWidth);
+            for (int i = 0; i < rows; i++) {
+                visitor.visitRow(top[0] + i, rgb, i * origWidth);
+            }
+            top[0] += rows;
+        });
+    }
+
+    /**
+     * Receives the strips of the image as they are decoded
+     */
+    @FunctionalInterface
+    private interface StripVisitor {
+        /**
+         * @param strip -> the decoded strip, reused for the following strips. Only its first rows are valid
+         * @param rows -> number of rows in the strip
+         */
+        void visitStrip(BufferedImage strip, int rows);
+    }
+
+    /**
+     * Decodes a region of the original image strip after strip, decoding every strip into the same image
+     * @param left -> the first column of the region
+     * @param regionWidth -> number of columns in the region
+     * @param fromRow -> the first row of the region
+     * @param toRow -> the row right below the region
+     * @param stripRows -> number of rows in a strip (the last one may have less)
+     * @param stripVisitor -> receives every strip
+     */
+    @SuppressWarnings("try")
+    private void readStrips(int left, int regionWidth, int fromRow, int toRow, int stripRows,
+                            StripVisitor stripVisitor) {
+        try (ImageInputStream input = FileImage.openInput(file)) {
+            ImageReader reader = FileImage.readerFor(input, file);
+            try {
+                reader.setInput(input, false, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                for (int y = fromRow; y < toRow; y += stripRows) {
+                    int rows = min(stripRows, toRow - y);
+                    param.setSourceRegion(new Rectangle(left, y, regionWidth, rows));
+                    BufferedImage strip;
+                    try (PipelineMetrics.Timer timer = PipelineMetrics.start(PipelineMetrics.Stage.DECODE)) {
+                        strip = reader.read(0, param);
+                    }
+                    param.setDestination(strip);
+                    stripVisitor.visitStrip(strip, rows);
+                }
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public Rectangle getContentBounds() {
+        return new Rectangle(leftBound, upperBound, origWidth, origHeight);
+    }
+
+    @Override
+    public int getFillRgb() {
+        return defaultRgb;
+    }
+
+    @Override
+    public int getImageIdentifier() {
+        return imageIdentifier;
+    }
+
+    @Override
+    public synchronized String getContentHash() {
+        if (contentHash == null) {
+            contentHash = FileImage.hashFile(file);
+        }
+        return contentHash;
+    }
+
+    /**
+     * When the downsampled image has no more pixels than the streaming threshold the image was opened with, it
+     * is decoded from the file with subsampling like any other FileImage
+     * @param factor -> a power of 2
+     * @return this image at a lower resolution, or this image if even that is too large
+     */
+    @Override
+    public Image downsampled(int factor) {
+        long pixels = ((long) origWidth + factor - 1) / factor * (((long) origHeight + factor - 1) / factor);
+        if (factor == 1 || pixels > streamingThreshold) {
+            return this;
+        }
+        return new FileImage(file, new Dimension(origWidth, origHeight)).downsampled(factor);
+    }
+
+    /**
+     *
+     * @return true, the pixels are decoded again on every visit
+     */
+    @Override
+    public boolean isStreaming() {
+        return true;
+    }
+}
@@ -0,0 +1,213 @@
+package metrics;
+
+import jdk.jfr.EventType;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Where the stages of the conversion report their time: every run of a stage adds its duration (System.nanoTime)
+ * and the bytes allocated by its thread (ThreadMXBean) to the totals of the stage, and is emitted as a flight
+ * recorder event (StageEvent) when a recording enables it. Counters of other components, e.g. the hits and
+ * misses of the caches, are registered by name and read when the metrics are shown.
+ * The metrics are disabled by default (or enabled with -Dascii_art.metrics=true) - a disabled stage with no
+ * recording costs two volatile reads and returns a shared timer that does nothing.
+ * Stages may run inside one another (e.g. decoding inside indexing, when an image is decoded the first time its
+ * pixels are read), and such time is counted in both.
+ * USAGE: try (PipelineMetrics.Timer timer = PipelineMetrics.start(PipelineMetrics.Stage.MATCH)) { ... }
+ * The timer is never referenced in the try block, so javac -Xlint:try warns about it - the methods that time a
+ * stage are annotated with @SuppressWarnings("try").
+ */
+public final class PipelineMetrics {
+    /**
+     * The measured stages of the conversion
+     */
+    public enum Stage {
+        DECODE("decode"), INDEX("index"), GLYPHS("glyphs"), MATCH("match"), OUTPUT("output");
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        public String label() {
+            return label;
+        }
+    }
+
+    private static final EventType STAGE_EVENT_TYPE = EventType.getEventType(StageEvent.class);
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final int NUM_OF_STAGES = Stage.values().length;
+    private static final LongAdder[] RUNS = newAdders();
+    private static final LongAdder[] NANOS = newAdders();
+    private static final LongAdder[] ALLOCATED_BYTES = newAdders();
+    private static final Map<String, LongSupplier> COUNTERS = new ConcurrentSkipListMap<>();
+    private static final Timer DISABLED_TIMER = new Timer(null, 0, 0, null);
+    private static volatile boolean enabled = Boolean.getBoolean("ascii_art.metrics");
+
+    private PipelineMetrics() {
+    }
+
+    private static LongAdder[] newAdders() {
+        LongAdder[] adders = new LongAdder[NUM_OF_STAGES];
+        for (int i = 0; i < NUM_OF_STAGES; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * A run of a stage, which is reported when it's closed
+     */
+    public static final class Timer implements AutoCloseable {
+        private final Stage stage;
+        private final long start;
+        private final long allocatedBefore;
+        private final StageEvent event;
+
+        private Timer(Stage stage, long start, long allocatedBefore, StageEvent event) {
+            this.stage = stage;
+            this.start = start;
+            this.allocatedBefore = allocatedBefore;
+            this.event = event;
+        }
+
+        @Override
+        public void close() {
+            if (stage == null) {
+                return;
+            }
+            long elapsed = System.nanoTime() - start;
+            long allocated = allocatedBytes() - allocatedBefore;
+            RUNS[stage.ordinal()].increment();
+            NANOS[stage.ordinal()].add(elapsed);
+            ALLOCATED_BYTES[stage.ordinal()].add(allocated);
+            if (event != null) {
+                event.stage = stage.label();
+                event.allocatedBytes = allocated;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Starts a run of a stage
+     * @param stage -> the stage that runs
+     * @return the timer of the run, to be closed when the run ends
+     */
+    public static Timer start(Stage stage) {
+        boolean recording = STAGE_EVENT_TYPE.isEnabled();
+        if (!enabled && !recording) {
+            return DISABLED_TIMER;
+        }
+        StageEvent event = null;
+        if (recording) {
+            event = new StageEvent();
+            event.begin();
+        }
+        return new Timer(stage, System.nanoTime(), allocatedBytes(), event);
+    }
+
+    /**
+     *
+     * @param enabled -> whether stages add their runs to the totals
+     */
+    public static void setEnabled(boolean enabled) {
+        PipelineMetrics.enabled = enabled;
+    }
+
+    /**
+     *
+     * @return true if stages add their runs to the totals
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Registers a counter, replacing a counter of the same name
+     * @param name -> the name the counter is shown with
+     * @param counter -> reads the current value of the counter
+     */
+    public static void registerCounter(String name, LongSupplier counter) {
+        COUNTERS.put(name, counter);
+    }
+
+    /**
+     * Resets the totals of the stages. Registered counters are kept
+     */
+    public static void reset() {
+        for (int i = 0; i < NUM_OF_STAGES; i++) {
+            RUNS[i].reset();
+            NANOS[i].reset();
+            ALLOCATED_BYTES[i].reset();
+        }
+    }
+
+    /**
+     *
+     * @return the number of bytes allocated so far by the current thread, or 0 if the JVM doesn't count them
+     */
+    private static long allocatedBytes() {
+        return THREADS.isThreadAllocatedMemoryEnabled() ?
+                THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+    }
+
+    /**
+     *
+     * @return a table of the totals of every stage, followed by the registered counters
+     */
+    public static String summary() {
+        StringBuilder summary = new StringBuilder(String.format(Locale.ROOT, "%-8s %8s %12s %12s %14s%n",
+                "stage", "runs", "total ms", "mean ms", "allocated MB"));
+        for (Stage stage : Stage.values()) {
+            long runs = RUNS[stage.ordinal()].sum();
+            double totalMillis = NANOS[stage.ordinal()].sum() / 1e6;
+            summary.append(String.format(Locale.ROOT, "%-8s %8d %12.3f %12.3f %14.3f%n", stage.label(), runs,
+                    totalMillis, runs == 0 ? 0 : totalMillis / runs,
+                    ALLOCATED_BYTES[stage.ordinal()].sum() / (double) (1 << 20)));
+        }
+        for (Map.Entry<String, LongSupplier> counter : COUNTERS.entrySet()) {
+            summary.append(String.format("%s: %d%n", counter.getKey(), counter.getValue().getAsLong()));
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Writes the totals of every stage and the registered counters as a JSON object
+     * @param path -> the file to write
+     * @throws IOException in case the file couldn't be written
+     */
+    public static void writeJson(Path path) throws IOException {
+        try (PrintStream out = new PrintStream(Files.newOutputStream(path), false, "UTF-8")) {
+            out.println("{");
+            out.println("  \"stages\": {");
+            Stage[] stages = Stage.values();
+            for (int i = 0; i < stages.length; i++) {
+                out.print(String.format(Locale.ROOT,
+                        "    \"%s\":{\"runs\":%d,\"nanos\":%d,\"allocatedBytes\":%d}", stages[i].label(),
+                        RUNS[i].sum(), NANOS[i].sum(), ALLOCATED_BYTES[i].sum()));
+                out.println(i + 1 < stages.length ? "," : "");
+            }
+            out.println("  },");
+            out.println("  \"counters\": {");
+            int remaining = COUNTERS.size();
+            for (Map.Entry<String, LongSupplier> counter : COUNTERS.entrySet()) {
+                out.print(String.format("    \"%s\":%d", counter.getKey(), counter.getValue().getAsLong()));
+                out.println(--remaining > 0 ? "," : "");
+            }
+            out.println("  }");
+            out.println("}");
+        }
+    }
+}
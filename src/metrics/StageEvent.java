@@ -0,0 +1,27 @@
+package metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A flight recorder event of one run of a stage of the conversion. The event is only created while a
+ * recording that enables it is running, e.g. java -XX:StartFlightRecording=settings=profile,... with
+ * "ascii_art.Stage#enabled=true", so it costs nothing otherwise.
+ */
+@Name("ascii_art.Stage")
+@Label("Conversion Stage")
+@Category("ASCII Art")
+@Description("A run of a stage of the conversion of an image to ASCII art")
+@StackTrace(false)
+class StageEvent extends jdk.jfr.Event {
+    @Label("Stage")
+    String stage;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocatedBytes;
+}